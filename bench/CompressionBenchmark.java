@@ -0,0 +1,150 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import server.Compression;
+import server.OutboundMessage;
+import server.Protocol;
+
+/**
+ * The CompressionBenchmark class shows the CPU-versus-bytes tradeoff of compressed frames:
+ * for a short chat line, a long multi-line message and a history replay of 100 messages,
+ * it measures the time to deflate and inflate at deflate levels 1, 6 and 9, and prints the
+ * compressed size of each when the trial starts.
+ * A compressed broadcast is deflated once, so the deflate time is paid once per message,
+ * while the inflate time is paid by every client.
+ *
+ * Run with: gradle jmh -PjmhIncludes=CompressionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    private static final int HEADER_SIZE = 6; // Version byte, type byte and length of a binary frame
+    private static final String[] WORDS = {
+            "the", "build", "is", "green", "again", "can", "you", "review", "my", "patch", "before", "lunch",
+            "server", "client", "message", "room", "thanks", "sure", "later", "today", "tomorrow", "meeting"
+    }; // Vocabulary of the generated chat text
+
+    @Param({"chat", "multiline", "history"})
+    public String payload; // Kind of frames compressed
+
+    @Param({"1", "6", "9"})
+    public int level; // Deflate level: fastest, default and smallest
+
+    private byte[] frames; // Encoded binary frames of the payload
+    private byte[] compressed; // The frames deflated at the level
+    private Deflater deflater; // Deflater at the level
+
+    /**
+     * Builds the payload and deflates it once, printing the sizes.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        switch (payload) {
+            case "chat":
+                frames = OutboundMessage.global("alice: " + sentence(random, 8)).bytes(true);
+                break;
+            case "multiline":
+                frames = OutboundMessage.global("alice: " + paragraph(random, 40)).bytes(true);
+                break;
+            default:
+                frames = history(random, 100).bytes(true);
+                break;
+        }
+        deflater = new Deflater(level);
+        compressed = Compression.deflate(frames, deflater, 0);
+        System.out.printf(Locale.ROOT, "%n%s at level %d: %d bytes, %d compressed (ratio %.3f)%n",
+                payload, level, frames.length, compressed.length, (double) compressed.length / frames.length);
+    }
+
+    /**
+     * Releases the deflater's native memory.
+     */
+    @TearDown
+    public void tearDown() {
+        deflater.end();
+    }
+
+    /**
+     * Deflates the payload into a compressed frame.
+     *
+     * @return The compressed frame.
+     */
+    @Benchmark
+    public byte[] deflate() {
+        return Compression.deflate(frames, deflater, 0);
+    }
+
+    /**
+     * Inflates the compressed frame, as every receiving client does.
+     *
+     * @return The inflated frames.
+     * @throws IOException If the frame does not inflate.
+     */
+    @Benchmark
+    public byte[] inflate() throws IOException {
+        if (compressed == frames) {
+            return frames; // Did not shrink, so it is sent as it is
+        }
+        return Compression.inflate(compressed, HEADER_SIZE, compressed.length - HEADER_SIZE, Protocol.MAX_INFLATED_SIZE);
+    }
+
+    /**
+     * Creates a history replay of global messages from a few senders.
+     *
+     * @param random The random source.
+     * @param size   The number of messages.
+     * @return The batch.
+     */
+    private static OutboundMessage history(Random random, int size) {
+        OutboundMessage[] messages = new OutboundMessage[size];
+        for (int i = 0; i < size; i++) {
+            messages[i] = OutboundMessage.global("user" + random.nextInt(10) + ": " + sentence(random, 4 + random.nextInt(12)));
+        }
+        return OutboundMessage.batch(messages);
+    }
+
+    /**
+     * Creates several lines of chat text.
+     *
+     * @param random The random source.
+     * @param lines  The number of lines.
+     * @return The text, with lines separated by newlines.
+     */
+    private static String paragraph(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append(sentence(random, 6 + random.nextInt(8))).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Creates a line of chat text.
+     *
+     * @param random The random source.
+     * @param words  The number of words.
+     * @return The line.
+     */
+    private static String sentence(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Histogram class records a distribution of durations in log-linear buckets of microseconds.
+ * Values below 64 microseconds are exact; larger values fall into one of 32 buckets per power
+ * of two, so percentiles are accurate to about 3%. Recording is lock-free and may happen from
+ * any number of threads.
+ */
+public class Histogram {
+    private static final int LINEAR = 64; // Values below this are counted exactly
+    private static final int SUB_BUCKETS = 32; // Buckets per power of two above LINEAR
+    private static final int SUB_BITS = 5; // log2 of SUB_BUCKETS
+
+    private AtomicLongArray buckets = new AtomicLongArray(LINEAR + 58 * SUB_BUCKETS); // Counts per bucket
+    private LongAdder count = new LongAdder(); // Number of recorded values
+    private LongAccumulator max = new LongAccumulator(Math::max, 0); // Largest recorded value in microseconds
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(index(micros));
+        count.increment();
+        max.accumulate(micros);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns a percentile of the recorded values.
+     *
+     * @param fraction The percentile as a fraction, such as 0.99.
+     * @return The upper bound of the bucket holding the percentile, in microseconds, or 0 if empty.
+     */
+    public long percentile(double fraction) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the distribution as the body of a JSON object, without braces.
+     *
+     * @param prefix The prefix for every key, such as "latency".
+     * @return The JSON fields.
+     */
+    public String toJson(String prefix) {
+        return String.format(Locale.ROOT,
+                "\"%1$sCount\":%2$d,\"%1$sP50Micros\":%3$d,\"%1$sP90Micros\":%4$d,\"%1$sP99Micros\":%5$d,"
+                        + "\"%1$sP999Micros\":%6$d,\"%1$sMaxMicros\":%7$d",
+                prefix, getCount(), percentile(0.50), percentile(0.90), percentile(0.99), percentile(0.999), max.get());
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param micros The value in microseconds.
+     * @return The bucket index.
+     */
+    private static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value that falls into a bucket.
+     *
+     * @param index The bucket index.
+     * @return The value in microseconds.
+     */
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The JsonReport class collects the results of a load run as JSON objects and prints them as one
+ * array, in the same shape as the JMH results, so runs on different commits can be compared.
+ * Set bench.output to also write the array to a file.
+ */
+public final class JsonReport {
+    private static String output = System.getProperty("bench.output"); // Optional file for the JSON results
+
+    private List<String> results = new ArrayList<>(); // JSON objects of the recorded results
+
+    /**
+     * Adds a result.
+     *
+     * @param json The result as a JSON object.
+     */
+    public void record(String json) {
+        results.add(json);
+    }
+
+    /**
+     * Prints all results as a JSON array, and writes them to bench.output if it is set.
+     *
+     * @throws IOException If the output file cannot be written.
+     */
+    public void report() throws IOException {
+        String json = "[\n  " + String.join(",\n  ", results) + "\n]";
+        System.out.println(json);
+        if (output != null) {
+            Files.write(Paths.get(output), json.getBytes());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package bench;
+
+import client.MessageReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import server.Server;
+
+/**
+ * The LatencyBenchmark class measures end-to-end global chat latency over loopback.
+ * It starts a server in the benchmark process, connects a number of receiving clients and one
+ * sender, and times each broadcast from the sender's write until every client has read it.
+ * JMH samples every broadcast, so the results include the p50, p99 and p99.9 delivery times.
+ * Each server mode runs in its own forked JVM, since a server does not stop on its own.
+ *
+ * Run with: gradle jmh -PjmhIncludes=LatencyBenchmark
+ * Settings: bench.port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LatencyBenchmark {
+    private static int port = Integer.getInteger("bench.port", 16789); // Port for the benchmark server
+
+    @Param({"blocking", "virtual", "nio"})
+    public String mode; // Server mode
+
+    @Param({"50"})
+    public int clients; // Number of receiving clients
+
+    private Socket[] sockets; // Sockets of the receivers, then the sender
+    private OutputStream output; // Stream of the sender
+    private volatile CountDownLatch arrived; // Counted down by every client that read the current broadcast
+    private long sequence; // Number of the next broadcast
+
+    /**
+     * Starts the server and connects the receivers and the sender.
+     *
+     * @throws Exception If the server does not start or a client cannot connect.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        startServer(mode);
+        sockets = new Socket[clients + 1];
+        for (int i = 0; i <= clients; i++) {
+            sockets[i] = connect(i < clients ? "receiver" + i : "sender"); // The sender receives its broadcasts too
+            Socket socket = sockets[i];
+            Thread thread = new Thread(() -> receive(socket), "receiver-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        output = sockets[clients].getOutputStream();
+        Thread.sleep(500); // Let the server register every client before the first broadcast
+    }
+
+    /**
+     * Disconnects the clients.
+     *
+     * @throws IOException If a socket cannot be closed.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Broadcasts a global message and waits until every client has read it.
+     *
+     * @throws Exception If the broadcast cannot be sent or does not arrive in time.
+     */
+    @Benchmark
+    public void global() throws Exception {
+        CountDownLatch latch = new CountDownLatch(clients + 1);
+        arrived = latch;
+        output.write(("GLOBAL CHAT#sender: " + sequence++ + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("A broadcast did not reach every client");
+        }
+    }
+
+    /**
+     * Starts the server on a background thread and waits until it accepts connections.
+     *
+     * @param mode The server mode.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void startServer(String mode) throws InterruptedException {
+        Server server = new Server();
+        Thread thread = new Thread(() -> {
+            if (mode.equals("nio")) {
+                server.connectNio(port, Runtime.getRuntime().availableProcessors());
+            } else if (mode.equals("virtual")) {
+                server.connectVirtual(port);
+            } else {
+                server.connect(port);
+            }
+        }, "server");
+        thread.setDaemon(true);
+        thread.start();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close(); // The probe sends no name and is dropped by the server
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    /**
+     * Connects a client and sends its username.
+     *
+     * @param name The username.
+     * @return The connected socket.
+     * @throws IOException If connecting fails.
+     */
+    private static Socket connect(String name) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.getOutputStream().write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        return socket;
+    }
+
+    /**
+     * Reads broadcasts until the socket is closed, counting down the latch of each one.
+     *
+     * @param socket The client's socket.
+     */
+    private void receive(Socket socket) {
+        try {
+            MessageReader input = new MessageReader(socket.getInputStream());
+            String[] parts;
+            while ((parts = input.read()) != null) {
+                if (parts.length > 1 && parts[0].equals("GLOBAL CHAT") && parts[1].startsWith("sender: ")) {
+                    arrived.countDown();
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the teardown
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package bench;
+
+import client.MessageReader;
+import client.Protocol;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LoadGenerator class drives a running server with many headless clients.
+ * Every simulated client speaks the same protocol as the Swing client: it sends its username,
+ * optionally asks for the binary format, and then sends global messages, private messages
+ * and existence checks. A single driver thread sends a configurable mix of these at a target
+ * rate, spread over random clients; every message carries the time it was due, so receivers
+ * can record end-to-end latency without coordinated omission.
+ *
+ * Run with: java -cp out bench.LoadGenerator
+ * Settings: load.host, load.port, load.clients, load.rate (messages per second),
+ * load.duration (seconds), load.mix (weights such as "global=5,private=80,exist=15"),
+ * load.binary (true or false) and load.prefix (username prefix).
+ */
+public class LoadGenerator {
+    private static String host = System.getProperty("load.host", "localhost"); // Server host
+    private static int port = Integer.getInteger("load.port", 6789); // Server port
+    private static int clientCount = Integer.getInteger("load.clients", 1000); // Number of simulated clients
+    private static int rate = Integer.getInteger("load.rate", 1000); // Messages sent per second
+    private static int duration = Integer.getInteger("load.duration", 10); // Length of the run in seconds
+    private static String mix = System.getProperty("load.mix", "global=5,private=80,exist=15"); // Message mix weights
+    private static boolean binary = Boolean.parseBoolean(System.getProperty("load.binary", "true")); // Whether clients upgrade
+    private static String prefix = System.getProperty("load.prefix", "load"); // Prefix of the simulated usernames
+
+    private static Histogram connectTimes = new Histogram(); // Time from connecting to a confirmed registration
+    private static Histogram[] latencies = new Histogram[Protocol.EXIST + 1]; // End-to-end latency by message type
+    private static LongAdder[] sent = new LongAdder[Protocol.EXIST + 1]; // Messages sent by type
+    private static LongAdder errors = new LongAdder(); // Clients that failed or were disconnected
+
+    /**
+     * The main method connects the clients, runs the load and prints the results as JSON.
+     *
+     * @param args Command-line arguments (not used).
+     * @throws Exception If the clients cannot connect.
+     */
+    public static void main(String[] args) throws Exception {
+        for (byte type = Protocol.GLOBAL; type <= Protocol.EXIST; type++) {
+            latencies[type] = new Histogram();
+            sent[type] = new LongAdder();
+        }
+        int[] weights = parseMix(mix);
+        int totalWeight = weights[Protocol.GLOBAL] + weights[Protocol.PRIVATE] + weights[Protocol.EXIST];
+
+        // Connect every client and wait until the server has registered it
+        long connectStart = System.nanoTime();
+        SimulatedClient[] clients = new SimulatedClient[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new SimulatedClient(prefix + i);
+            clients[i].connect();
+        }
+        for (SimulatedClient client : clients) {
+            if (!client.ready.await(30, TimeUnit.SECONDS)) {
+                throw new IOException(client.name + " was not registered");
+            }
+        }
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        System.err.printf(Locale.ROOT, "Connected %d clients in %.2f s%n", clientCount, connectSeconds);
+
+        // Send the mix at the target rate
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long next = start;
+        while (next < end) {
+            while (System.nanoTime() < next) {
+                Thread.onSpinWait();
+            }
+            SimulatedClient client = clients[random.nextInt(clientCount)];
+            String other = clients[random.nextInt(clientCount)].name;
+            int pick = random.nextInt(totalWeight);
+            if (pick < weights[Protocol.GLOBAL]) {
+                client.send(Protocol.GLOBAL, client.name + ": " + next);
+                sent[Protocol.GLOBAL].increment();
+            } else if (pick < weights[Protocol.GLOBAL] + weights[Protocol.PRIVATE]) {
+                client.send(Protocol.PRIVATE, other, Long.toString(next));
+                sent[Protocol.PRIVATE].increment();
+            } else {
+                client.pendingChecks.add(next); // Answers arrive in the order the checks were sent
+                client.send(Protocol.EXIST, other);
+                sent[Protocol.EXIST].increment();
+            }
+            next += interval;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(1000); // Give the last messages time to arrive
+
+        for (SimulatedClient client : clients) {
+            client.send(Protocol.EXIT);
+        }
+        report(seconds, connectSeconds);
+        System.exit(0);
+    }
+
+    /**
+     * Prints the results as JSON.
+     *
+     * @param seconds        The length of the sending phase in seconds.
+     * @param connectSeconds The time it took to connect every client in seconds.
+     * @throws IOException If the results cannot be written.
+     */
+    private static void report(double seconds, double connectSeconds) throws IOException {
+        JsonReport bench = new JsonReport();
+        bench.record(String.format(Locale.ROOT,
+                "{\"benchmark\":\"load.connect\",\"clients\":%d,\"binary\":%b,\"seconds\":%.2f,\"errors\":%d,%s}",
+                clientCount, binary, connectSeconds, errors.sum(), connectTimes.toJson("connect")));
+        String[] names = {null, "global", "private", "exist"};
+        for (byte type = Protocol.GLOBAL; type <= Protocol.EXIST; type++) {
+            long count = sent[type].sum();
+            long received = latencies[type].getCount();
+            bench.record(String.format(Locale.ROOT,
+                    "{\"benchmark\":\"load.%s\",\"sent\":%d,\"sentPerSecond\":%.0f,\"received\":%d,\"receivedPerSecond\":%.0f,%s}",
+                    names[type], count, count / seconds, received, received / seconds, latencies[type].toJson("latency")));
+        }
+        bench.report();
+    }
+
+    /**
+     * Parses the message mix.
+     *
+     * @param mix Weights such as "global=5,private=80,exist=15".
+     * @return The weights indexed by message type.
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[Protocol.EXIST + 1];
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "global":
+                    weights[Protocol.GLOBAL] = weight;
+                    break;
+                case "private":
+                    weights[Protocol.PRIVATE] = weight;
+                    break;
+                case "exist":
+                    weights[Protocol.EXIST] = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown message type in load.mix: " + pair[0]);
+            }
+        }
+        if (weights[Protocol.GLOBAL] + weights[Protocol.PRIVATE] + weights[Protocol.EXIST] <= 0) {
+            throw new IllegalArgumentException("load.mix has no positive weights");
+        }
+        return weights;
+    }
+
+    /**
+     * The SimulatedClient class is one headless client with its own socket and reader thread.
+     */
+    private static class SimulatedClient {
+        private String name; // Username of the client
+        private Socket socket; // Socket connected to the server
+        private OutputStream output; // Buffered output to the server
+        private volatile boolean upgraded; // Whether the server accepted the binary format
+        private CountDownLatch ready = new CountDownLatch(1); // Released once the server has registered the client
+        private Queue<Long> pendingChecks = new ConcurrentLinkedQueue<>(); // Due times of unanswered existence checks
+
+        /**
+         * Constructor for the SimulatedClient.
+         *
+         * @param name The username of the client.
+         */
+        SimulatedClient(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Connects to the server, sends the username and handshake, and starts the reader thread.
+         * The client counts as registered once the server answers an existence check for its own name.
+         *
+         * @throws IOException If connecting fails.
+         */
+        void connect() throws IOException {
+            long start = System.nanoTime();
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            output = new BufferedOutputStream(socket.getOutputStream());
+            synchronized (this) {
+                output.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                if (binary) {
+                    output.write(Protocol.encodeText(Protocol.UPGRADE, Protocol.BINARY));
+                }
+                output.write(Protocol.encodeText(Protocol.EXIST, name));
+                output.flush();
+            }
+            Thread reader = new Thread(() -> receive(start), "reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Sends a message in the negotiated format. Failures are counted, not thrown.
+         *
+         * @param type   The message type.
+         * @param fields The fields of the message.
+         */
+        synchronized void send(byte type, String... fields) {
+            try {
+                output.write(upgraded ? Protocol.encodeBinary(type, fields) : Protocol.encodeText(type, fields));
+                output.flush();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+
+        /**
+         * Reads messages from the server and records the latency of every timestamped one.
+         *
+         * @param connectStart The time the connection was started.
+         */
+        private void receive(long connectStart) {
+            try {
+                MessageReader input = new MessageReader(socket.getInputStream());
+                String[] parts;
+                while ((parts = input.read()) != null) {
+                    if (parts.length < 2) {
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (parts[0].equals("GLOBAL CHAT")) {
+                        latencies[Protocol.GLOBAL].record(now - Long.parseLong(parts[1].substring(parts[1].lastIndexOf(' ') + 1)));
+                    } else if (parts[0].equals("Protocol Upgrade response")) {
+                        upgraded = parts[1].equals(Protocol.BINARY);
+                    } else if (parts[0].equals("Client Exist response")) {
+                        if (ready.getCount() > 0) {
+                            connectTimes.record(now - connectStart);
+                            ready.countDown();
+                        } else {
+                            Long due = pendingChecks.poll();
+                            if (due != null) {
+                                latencies[Protocol.EXIST].record(now - due);
+                            }
+                        }
+                    } else if (parts[0].equals("Name Taken response")) {
+                        System.err.println(name + " is already taken");
+                        errors.increment();
+                        break;
+                    } else {
+                        latencies[Protocol.PRIVATE].record(now - Long.parseLong(parts[1]));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                errors.increment();
+            }
+        }
+    }
+}
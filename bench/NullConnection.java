@@ -0,0 +1,81 @@
+package bench;
+
+import server.Connection;
+import server.OutboundMessage;
+
+/**
+ * The NullConnection class is an in-memory client for benchmarks. It encodes every message
+ * it is sent, as a real connection would, and then discards it.
+ */
+public class NullConnection implements Connection {
+    private String clientName; // Name of the simulated client
+    private boolean binary; // Wire format the simulated client negotiated
+    private long bytesSent; // Number of bytes that would have been written
+
+    /**
+     * Constructor for the NullConnection.
+     *
+     * @param clientName The name of the simulated client.
+     * @param binary     Whether the simulated client uses the binary format.
+     */
+    public NullConnection(String clientName, boolean binary) {
+        this.clientName = clientName;
+        this.binary = binary;
+    }
+
+    /**
+     * Returns the name of the simulated client.
+     *
+     * @return The client's name.
+     */
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Encodes the message in the client's format and discards it.
+     *
+     * @param message The message to be sent.
+     */
+    @Override
+    public void send(OutboundMessage message) {
+        bytesSent += message.bytes(binary).length;
+    }
+
+    /**
+     * Returns the number of queued messages, which is always zero.
+     *
+     * @return Zero.
+     */
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    /**
+     * Returns the number of dropped messages, which is always zero.
+     *
+     * @return Zero.
+     */
+    @Override
+    public long getDroppedCount() {
+        return 0;
+    }
+
+    /**
+     * Does nothing, as there is no socket to close.
+     */
+    @Override
+    public void disconnect() {
+    }
+
+    /**
+     * Returns the number of bytes that would have been written.
+     *
+     * @return The byte count.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import server.InboundMessage;
+
+/**
+ * The ParserBenchmark class compares the index-scanning text protocol parsers of the server
+ * and the client with the split/replaceAll parsing they replaced.
+ *
+ * Run with: gradle jmh -PjmhIncludes=ParserBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParserBenchmark {
+    // A mix of the lines a busy room produces: global chat, private messages and existence checks
+    private static final String[] LINES = {
+            "GLOBAL CHAT#alice: hello everyone@@@@how is it going?",
+            "bob#hey there, long time no see",
+            "GLOBAL CHAT#carol: nothing much, just testing the new build",
+            "Client Exist#dave"
+    };
+
+    private byte[][] encoded; // The lines with their terminators
+    private InboundMessage holder = new InboundMessage(); // Reused by the server parser, as a connection does
+    private int next; // Index of the next line, masked to the line count
+
+    /**
+     * Encodes the lines.
+     */
+    @Setup
+    public void setUp() {
+        encoded = new byte[LINES.length][];
+        for (int i = 0; i < LINES.length; i++) {
+            encoded[i] = (LINES[i] + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Parses a line the way ClientHandler and ReceiveHandler used to.
+     *
+     * @return The parts of the line.
+     */
+    @Benchmark
+    public String[] legacySplitReplaceAll() {
+        byte[] line = encoded[next++ & 3];
+        String message = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+        String[] parts = message.split("#");
+        parts[1] = parts[1].replaceAll("@@@@", "\n");
+        return parts;
+    }
+
+    /**
+     * Parses a line with the server's decoder.
+     *
+     * @return The decoded body or target.
+     * @throws IOException If the line is malformed.
+     */
+    @Benchmark
+    public String serverDecode() throws IOException {
+        server.Protocol.decode(ByteBuffer.wrap(encoded[next++ & 3]), holder);
+        return holder.getBody() != null ? holder.getBody() : holder.getTarget();
+    }
+
+    /**
+     * Parses a line with the client's parser.
+     *
+     * @return The parts of the line.
+     */
+    @Benchmark
+    public String[] clientParseLine() {
+        byte[] line = encoded[next++ & 3];
+        return client.Protocol.parseLine(line, 0, line.length - 1);
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import server.ClientRegistry;
+import server.Connection;
+import server.Server;
+
+/**
+ * The RoutingBenchmark class measures the server's routing paths against in-memory clients:
+ * registry lookups, existence checks, private messages and global broadcast fan-out
+ * at 10, 1k and 100k connected clients.
+ *
+ * Run with: gradle jmh -PjmhIncludes=RoutingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoutingBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int clients; // Connected clients
+
+    private ClientRegistry registry; // Registry holding the clients on its own
+    private Server text; // Server whose clients use the text format
+    private Server binary; // Server whose clients use the binary format
+    private NullConnection asker; // Client asking and sending, not registered
+    private String[] names; // Names of the registered clients
+    private int mask; // Mask keeping a counter within the names
+    private int next; // Counter picking the next name
+
+    /**
+     * Registers the clients with the registry and both servers.
+     */
+    @Setup
+    public void setUp() {
+        registry = new ClientRegistry();
+        text = new Server();
+        binary = new Server();
+        names = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            names[i] = "user" + i;
+            registry.register(new NullConnection(names[i], false));
+            text.registerClient(new NullConnection(names[i], false));
+            binary.registerClient(new NullConnection(names[i], true));
+        }
+        asker = new NullConnection("asker", false);
+        mask = Integer.highestOneBit(clients) - 1;
+    }
+
+    /**
+     * Looks a client up in the registry.
+     *
+     * @return The client.
+     */
+    @Benchmark
+    public Connection registryLookup() {
+        return registry.get(names[next++ & mask]);
+    }
+
+    /**
+     * Answers an existence check.
+     *
+     * @return The bytes sent to the asker so far.
+     */
+    @Benchmark
+    public long clientExist() {
+        text.clientExist(asker, names[next++ & mask]);
+        return asker.getBytesSent();
+    }
+
+    /**
+     * Routes a private message to a connected client.
+     *
+     * @return The server.
+     */
+    @Benchmark
+    public Server sendPrivateMessage() {
+        text.sendPrivateMessage("asker", names[next++ & mask], "hello there");
+        return text;
+    }
+
+    /**
+     * Broadcasts a global message to every client in the text format.
+     *
+     * @return The server.
+     */
+    @Benchmark
+    public Server sendGlobalMessageText() {
+        text.sendGlobalMessage("asker: hello everyone");
+        return text;
+    }
+
+    /**
+     * Broadcasts a global message to every client in the binary format.
+     *
+     * @return The server.
+     */
+    @Benchmark
+    public Server sendGlobalMessageBinary() {
+        binary.sendGlobalMessage("asker: hello everyone");
+        return binary;
+    }
+}
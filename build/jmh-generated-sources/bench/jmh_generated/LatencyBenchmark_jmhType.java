@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class LatencyBenchmark_jmhType extends LatencyBenchmark_jmhType_B3 {
+}
+
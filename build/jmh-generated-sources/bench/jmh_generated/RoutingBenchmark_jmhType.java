@@ -0,0 +1,4 @@
+package bench.jmh_generated;
+public class RoutingBenchmark_jmhType extends RoutingBenchmark_jmhType_B3 {
+}
+
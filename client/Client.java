@@ -1,15 +1,22 @@
 package client;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.net.Socket;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.MatteBorder;
 
@@ -20,16 +27,30 @@ import javax.swing.border.MatteBorder;
 public class Client extends JFrame {
     private String clientName; // Name of the client
     private Socket socket; // Socket for communication with the server
-    private PrintWriter output; // Output stream to send messages to the server
-    private Scanner input; // Input stream to receive messages from the server
+    private OutputStream output; // Output stream to send messages to the server
+    private MessageReader input; // Reader for messages from the server
     private boolean running; // Flag to control the receive thread
+    private volatile boolean binary; // Whether the server accepted the binary format
+    private volatile boolean compressed; // Whether the server accepted compressed frames
+    private Deflater deflater = new Deflater(); // Reused for every large message, guarded by send
     private JPanel conversations; // Panel to display chat buttons
     private JTextArea globalChatArea; // Text area to display global chat messages
+    private Scrollback globalScrollback; // Bounds the global chat area, adding messages in batches
+    private JTabbedPane roomTabs; // One tab per joined room
+    private Map<String, JTextArea> roomAreas = new ConcurrentHashMap<>(); // Message areas of the joined rooms by room name
+    private Set<String> onlineUsers = ConcurrentHashMap.newKeySet(); // Names of online clients, pushed by the server
+    private volatile boolean presenceKnown; // Whether the server sent the online list, so names can be checked locally
     private static String ip = "192.168.8.119"; // Server IP address
     private static int port = 6789; // Server port
+    private static final long HEARTBEAT_MILLIS = 15_000; // Interval of heartbeats, well inside the server's idle timeout
+    private static final int MAX_DISPATCH_BATCH = 500; // Messages applied per drain on the Event Dispatch Thread
+    private static final long WINDOW_IDLE_MILLIS = Long.getLong("talktik.windowIdleSeconds", 300) * 1000; // Time a hidden chat window is kept, 0 to keep all
+    private static final int SCROLLBACK_MESSAGES = Integer.getInteger("talktik.scrollbackMessages", 1000); // Global messages kept on screen, 0 for all
+    private static final int CONVERSATION_MESSAGES = Integer.getInteger("talktik.conversationMessages", 1000); // Private messages kept in memory per chat, 0 for all
+    private Queue<String[]> inbox = new ConcurrentLinkedQueue<>(); // Messages decoded by the receive thread, waiting for the EDT
+    private AtomicBoolean dispatchScheduled = new AtomicBoolean(); // Whether a drain of the inbox is queued on the EDT
 
-    List<Window> openedWindows = new LinkedList<>(); // List of opened private chat windows
-    Map<Window, JButton> buttonsMap = new HashMap<>(); // Map to associate windows with their buttons
+    Map<String, Conversation> openedConversations = new ConcurrentHashMap<>(); // Private chats by receiver name, each with its button
 
     /**
      * Returns the name of the client.
@@ -58,7 +79,7 @@ public class Client extends JFrame {
             public void windowClosing(WindowEvent we) {
                 try {
                     // Notify the server about the exit and close the socket
-                    output.println("EXIT");
+                    send(Protocol.EXIT);
                     socket.close();
                     System.exit(0);
                 } catch (IOException e) {
@@ -147,16 +168,64 @@ public class Client extends JFrame {
 
         JScrollPane globalChatAreaScroll = new JScrollPane(globalChatArea, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
 
-        globalChatArea.addComponentListener(new ComponentAdapter() {
-            @Override
-            public void componentResized(ComponentEvent e) {
-                globalChatAreaScroll.getVerticalScrollBar().setValue(globalChatAreaScroll.getVerticalScrollBar().getMaximum());
-            }
-        });
+        // Keep the last messages in the area, scrolled to the bottom while the user follows the chat
+        globalScrollback = new Scrollback(globalChatArea, globalChatAreaScroll, SCROLLBACK_MESSAGES);
 
         globalChat.add(globalChatAreaScroll, BorderLayout.CENTER);
         rightPanel.add(globalChat);
 
+        // Set up the rooms panel beside the global chat
+        JPanel rooms = new JPanel();
+        rooms.setLayout(new BorderLayout());
+
+        JLabel roomsTitle = new JLabel("Rooms");
+        roomsTitle.setFont(new Font("Arial", Font.BOLD, 70));
+        roomsTitle.setBackground(Color.decode("#e8dff5"));
+        roomsTitle.setOpaque(true);
+        roomsTitle.setHorizontalAlignment(SwingConstants.CENTER);
+
+        JTextField roomName = new JTextField(10);
+        roomName.setFont(new Font("Arial", Font.BOLD, 20));
+        JButton join = new JButton("join");
+        join.setFont(new Font("Arial", Font.BOLD, 20));
+        join.setBackground(Color.decode("#fce1e4"));
+        JButton leave = new JButton("leave");
+        leave.setFont(new Font("Arial", Font.BOLD, 20));
+        leave.setBackground(Color.decode("#fce1e4"));
+
+        JPanel roomControls = new JPanel();
+        roomControls.setLayout(new FlowLayout());
+        roomControls.add(roomName);
+        roomControls.add(join);
+        roomControls.add(leave);
+
+        JPanel roomsHeader = new JPanel(new BorderLayout());
+        roomsHeader.add(roomsTitle, BorderLayout.NORTH);
+        roomsHeader.add(roomControls, BorderLayout.SOUTH);
+        rooms.add(roomsHeader, BorderLayout.NORTH);
+
+        roomTabs = new JTabbedPane();
+        roomTabs.setFont(new Font("Arial", Font.BOLD, 20));
+        rooms.add(roomTabs, BorderLayout.CENTER);
+
+        JButton roomSend = new JButton("Send");
+        roomSend.setFont(new Font("Arial", Font.BOLD, 20));
+        roomSend.setBackground(Color.decode("#fce1e4"));
+
+        JTextArea roomInput = new JTextArea();
+        roomInput.setColumns(20);
+        roomInput.setRows(2);
+        roomInput.setLineWrap(true);
+        roomInput.setFont(new Font("Arial", Font.PLAIN, 20));
+
+        JPanel roomBottomPanel = new JPanel();
+        roomBottomPanel.setPreferredSize(new Dimension(60, 60));
+        roomBottomPanel.setLayout(new FlowLayout());
+        roomBottomPanel.add(new JScrollPane(roomInput, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER));
+        roomBottomPanel.add(roomSend);
+        rooms.add(roomBottomPanel, BorderLayout.SOUTH);
+        rightPanel.add(rooms);
+
         // Set up the chats panel
         JPanel chats = new JPanel(new BorderLayout());
         chats.setBorder(new MatteBorder(0, 0, 0, 1, Color.BLACK));
@@ -186,9 +255,9 @@ public class Client extends JFrame {
             clientName = JOptionPane.showInputDialog(null, "Enter Your username. \nUser name must contain at most 10 characters");
             if (clientName == null)
                 System.exit(0);
-            if (clientName.length() < 1 || clientName.length() > 10)
+            if (clientName.length() < 1 || clientName.length() > 10 || Protocol.isReservedName(clientName))
                 JOptionPane.showMessageDialog(null, "The username that you has entered isn't valid. Please try again.");
-        } while (clientName.length() < 1 || clientName.length() > 10);
+        } while (clientName.length() < 1 || clientName.length() > 10 || Protocol.isReservedName(clientName));
 
         // Set up the profile information
         JLabel userNameLabel = new JLabel("Username");
@@ -217,8 +286,14 @@ public class Client extends JFrame {
         open.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 if (!receiverName.getText().trim().isEmpty()) {
-                    // Check if the receiver exists
-                    output.println("Client Exist#" + receiverName.getText());
+                    // Check if the receiver exists, locally once the server pushes the online list
+                    if (!presenceKnown) {
+                        send(Protocol.EXIST, receiverName.getText());
+                    } else if (onlineUsers.contains(receiverName.getText())) {
+                        addCleint(receiverName.getText());
+                    } else {
+                        JOptionPane.showMessageDialog(null, "The username doesn't exist.");
+                    }
                     receiverName.setText("");
                 }
             }
@@ -233,66 +308,125 @@ public class Client extends JFrame {
             }
         });
 
+        // Add action listener for the join button of the rooms panel
+        join.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String room = roomName.getText().trim();
+                if (room.isEmpty() || room.length() > 64 || room.contains("#")) {
+                    JOptionPane.showMessageDialog(null, "Room names must have 1 to 64 characters and no '#'.");
+                    return;
+                }
+                roomName.setText("");
+                if (!roomAreas.containsKey(room)) {
+                    JTextArea roomArea = new JTextArea();
+                    roomArea.setEditable(false);
+                    roomArea.setLineWrap(true);
+                    roomArea.setWrapStyleWord(true);
+                    roomArea.setFont(new Font("Arial", Font.PLAIN, 20));
+                    roomAreas.put(room, roomArea);
+                    roomTabs.addTab(room, new JScrollPane(roomArea, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER));
+                    send(Protocol.ROOM_JOIN, room);
+                }
+                roomTabs.setSelectedIndex(roomTabs.indexOfTab(room));
+            }
+        });
+
+        // Add key listener for the room name text field
+        roomName.addKeyListener(new KeyAdapter() {
+            public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+                    join.doClick();
+                }
+            }
+        });
+
+        // Add action listener for the leave button of the rooms panel
+        leave.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                int selected = roomTabs.getSelectedIndex();
+                if (selected >= 0) {
+                    String room = roomTabs.getTitleAt(selected);
+                    send(Protocol.ROOM_LEAVE, room);
+                    roomAreas.remove(room);
+                    roomTabs.removeTabAt(selected);
+                }
+            }
+        });
+
+        // Add action listener for the send button of the rooms panel
+        roomSend.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                int selected = roomTabs.getSelectedIndex();
+                if (selected >= 0 && !roomInput.getText().trim().isEmpty()) {
+                    String roomMessage = roomInput.getText();
+                    roomInput.setText("");
+                    send(Protocol.ROOM_MESSAGE, roomTabs.getTitleAt(selected), clientName + ": " + roomMessage);
+                }
+            }
+        });
+
+        // Dispose private chat windows that stay hidden, now and then
+        if (WINDOW_IDLE_MILLIS > 0) {
+            Timer windowSweeper = new Timer((int) Math.min(WINDOW_IDLE_MILLIS / 2, 60_000), e -> releaseIdleWindows());
+            windowSweeper.start();
+        }
+
         // Add action listener for the send button in the global chat
         send.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 if (!textInput.getText().trim().isEmpty()) {
-                    String globalMessage = textInput.getText().replaceAll("\n", "@@@@");
+                    String globalMessage = textInput.getText();
                     textInput.setText("");
-                    output.println("GLOBAL CHAT#" + clientName + ": " + globalMessage);
+                    send(Protocol.GLOBAL, clientName + ": " + globalMessage);
                 }
             }
         });
     }
 
     /**
-     * Adds a new private chat window for the specified receiver.
+     * Opens the private chat with the specified receiver, adding it if it is new.
      *
      * @param receiverName The name of the receiver.
      */
     public void addCleint(String receiverName) {
-        Optional<Window> result = openedWindows.stream()
-                .filter(a -> a.receiverName.equals(receiverName))
-                .findFirst();
-
-        if (result.isPresent()) {
-            result.get().setVisible(true);
-        } else {
-            Window newWindow = new Window(Client.this, receiverName);
-            openedWindows.add(newWindow);
-            addButton(newWindow, receiverName);
-        }
+        conversationWith(receiverName).open(Client.this);
     }
 
     /**
-     * Adds a button for the new private chat window.
+     * Returns the private chat with a receiver, adding it with its button if it is new.
+     * The window is only built when the chat is opened.
      *
-     * @param newWindow    The new private chat window.
      * @param receiverName The name of the receiver.
+     * @return The conversation.
+     */
+    private Conversation conversationWith(String receiverName) {
+        Conversation conversation = openedConversations.get(receiverName);
+        if (conversation == null) {
+            conversation = new Conversation(receiverName, CONVERSATION_MESSAGES);
+            openedConversations.put(receiverName, conversation);
+            addButton(conversation);
+        }
+        return conversation;
+    }
+
+    /**
+     * Adds a button for a new private chat.
+     *
+     * @param conversation The new private chat.
      */
-    public void addButton(Window newWindow, String receiverName) {
+    public void addButton(Conversation conversation) {
+        // The listener of each button opens the chat it was made for
         ActionListener windowDisplayListener = new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                JButton btn = (JButton) e.getSource();
-                Window win = null;
-
-                for (Map.Entry<Window, JButton> entry : buttonsMap.entrySet()) {
-                    if (entry.getValue().equals(btn)) {
-                        win = entry.getKey();
-                        win.setVisible(true);
-                        win.setExtendedState(Frame.MAXIMIZED_BOTH);
-                        break;
-                    }
-                }
+                conversation.open(Client.this);
+                updateButton(conversation);
             }
         };
 
-        JButton btn;
-        if (receiverName.equals(clientName))
-            btn = new JButton(receiverName + "(you)");
-        else
-            btn = new JButton(receiverName);
+        JButton btn = new JButton();
+        conversation.setButton(btn);
+        updateButton(conversation);
 
         btn.setContentAreaFilled(false);
         btn.setBorder(null);
@@ -313,14 +447,37 @@ public class Client extends JFrame {
             }
         });
 
-        buttonsMap.put(newWindow, btn);
         btn.addActionListener(windowDisplayListener);
         conversations.add(Box.createRigidArea(new Dimension(0, 10)));
         conversations.add(btn);
 
         conversations.revalidate();
         conversations.repaint();
-        newWindow.setVisible(true);
+    }
+
+    /**
+     * Shows the receiver's name on the button of a private chat, with the number of unread messages.
+     *
+     * @param conversation The private chat.
+     */
+    private void updateButton(Conversation conversation) {
+        String receiverName = conversation.getReceiverName();
+        String text = receiverName.equals(clientName) ? receiverName + "(you)" : receiverName;
+        if (conversation.getUnread() > 0) {
+            text += " (" + conversation.getUnread() + ")";
+        }
+        conversation.getButton().setText(text);
+    }
+
+    /**
+     * Disposes the windows of private chats that have been hidden for longer than WINDOW_IDLE_MILLIS.
+     * Their messages are kept, and the window is built again when the chat is opened.
+     */
+    private void releaseIdleWindows() {
+        long now = System.currentTimeMillis();
+        for (Conversation conversation : openedConversations.values()) {
+            conversation.releaseIfIdle(now, WINDOW_IDLE_MILLIS);
+        }
     }
 
     /**
@@ -346,14 +503,16 @@ public class Client extends JFrame {
     public void connect(String serverAddress, int portNumber) {
         try {
             socket = new Socket(serverAddress, portNumber);
-            output = new PrintWriter(socket.getOutputStream(), true);
-            input = new Scanner(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream()); // Flushed explicitly by send
+            input = new MessageReader(socket.getInputStream());
             running = true;
 
             setVisible(true);
 
-            // Send the client's name to the server
-            output.println(clientName);
+            // Send the client's name to the server, ask for the compressed binary format and for presence updates
+            output.write((clientName + "\n").getBytes(StandardCharsets.UTF_8));
+            send(Protocol.UPGRADE, Protocol.DEFLATE);
+            send(Protocol.PRESENCE_SUBSCRIBE, Protocol.PRESENCE);
 
             // Start a thread to handle incoming messages
             Thread receiveThread = new Thread(new ReceiveHandler());
@@ -363,6 +522,32 @@ public class Client extends JFrame {
         }
     }
 
+    /**
+     * Starts telling the server this client is alive while the user is only reading.
+     * Only called once the server accepted the binary format: a server that only speaks the
+     * text format would take a "Heartbeat#" line for a private message to a user of that name,
+     * while every server that speaks the binary format ignores frame types it does not know.
+     */
+    private void startHeartbeats() {
+        Thread heartbeatThread = new Thread(this::sendHeartbeats, "heartbeat");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
+    }
+
+    /**
+     * Sends a heartbeat every HEARTBEAT_MILLIS while the client is running.
+     */
+    private void sendHeartbeats() {
+        try {
+            while (running) {
+                Thread.sleep(HEARTBEAT_MILLIS);
+                send(Protocol.HEARTBEAT, "ping");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Sends a private message to the specified recipient.
      *
@@ -370,118 +555,154 @@ public class Client extends JFrame {
      * @param message   The message to be sent.
      */
     public void sendPrivateMessage(String recipient, String message) {
-        output.println(recipient + "#" + message);
+        send(Protocol.PRIVATE, recipient, message);
+    }
+
+    /**
+     * Sends a message to the server in the negotiated format. Every message the client sends
+     * is typed by the user, so it is flushed right away as a single write instead of waiting for more output.
+     *
+     * @param type   The message type.
+     * @param fields The fields of the message.
+     */
+    private synchronized void send(byte type, String... fields) {
+        try {
+            byte[] encoded = binary ? Protocol.encodeBinary(type, fields) : Protocol.encodeText(type, fields);
+            output.write(compressed ? Protocol.deflate(encoded, deflater) : encoded);
+            output.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Removes a private chat window from the client.
+     * Removes a private chat from the client and disposes its window.
      *
-     * @param window The window to be removed.
+     * @param conversation The private chat to be removed.
      */
-    public void removeWindow(Window window) {
-        openedWindows.remove(window);
-        JButton removedButton = buttonsMap.remove(window);
-        conversations.remove(removedButton);
+    public void removeConversation(Conversation conversation) {
+        openedConversations.remove(conversation.getReceiverName(), conversation);
+        conversation.discard();
+        conversations.remove(conversation.getButton());
         conversations.revalidate();
         conversations.repaint();
     }
 
+    /**
+     * Queues a message for the Event Dispatch Thread and schedules a drain unless one is pending.
+     * Called by the receive thread, so a burst of messages costs one EDT event, not one per message.
+     *
+     * @param parts The parts of the message.
+     */
+    private void post(String[] parts) {
+        inbox.add(parts);
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::dispatchMessages);
+        }
+    }
+
+    /**
+     * Applies the queued messages on the Event Dispatch Thread. Text for the global chat and
+     * each room is appended once, and each private chat that got messages is laid out once.
+     * At most MAX_DISPATCH_BATCH messages are applied per drain so input and painting are not held up.
+     */
+    private void dispatchMessages() {
+        dispatchScheduled.set(false);
+        Map<JTextArea, StringBuilder> roomText = new HashMap<>();
+        Set<Conversation> changedConversations = new LinkedHashSet<>();
+
+        String[] parts;
+        for (int count = 0; count < MAX_DISPATCH_BATCH && (parts = inbox.poll()) != null; count++) {
+            String sender = parts[0];
+            String privateMessage = parts[1];
+
+            if (sender.equals("GLOBAL CHAT")) {
+                globalScrollback.add(privateMessage);
+            } else if (sender.equals("Room Message")) {
+                JTextArea roomArea = roomAreas.get(privateMessage); // The room name
+                if (roomArea != null && parts.length > 2) {
+                    roomText.computeIfAbsent(roomArea, area -> new StringBuilder()).append(parts[2]).append("\n\n");
+                }
+            } else if (sender.equals("Name Taken response")) {
+                applyDispatched(roomText, changedConversations);
+                JOptionPane.showMessageDialog(null, "The username " + privateMessage + " is already in use.");
+                System.exit(0);
+            } else if (sender.equals("Client Exist response")) {
+                applyDispatched(roomText, changedConversations); // The dialog runs a nested event loop
+                String receiverName = parts[2];
+                if (privateMessage.equals("true"))
+                    addCleint(receiverName);
+                else
+                    JOptionPane.showMessageDialog(null, "The username doesn't exist.");
+            } else {
+                Conversation conversation = conversationWith(sender);
+                conversation.addReceived(privateMessage);
+                changedConversations.add(conversation);
+            }
+        }
+        applyDispatched(roomText, changedConversations);
+
+        if (!inbox.isEmpty() && dispatchScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::dispatchMessages); // Let other events run before the rest
+        }
+    }
+
+    /**
+     * Shows the collected global and room text and updates the changed private chats, then clears them.
+     * Chats whose window is showing are laid out; the others show their unread count on their button.
+     *
+     * @param roomText             The text for each room area.
+     * @param changedConversations The private chats that got messages.
+     */
+    private void applyDispatched(Map<JTextArea, StringBuilder> roomText, Set<Conversation> changedConversations) {
+        globalScrollback.flush();
+        for (Map.Entry<JTextArea, StringBuilder> entry : roomText.entrySet()) {
+            entry.getKey().append(entry.getValue().toString());
+        }
+        roomText.clear();
+        for (Conversation conversation : changedConversations) {
+            conversation.refresh();
+            updateButton(conversation);
+        }
+        changedConversations.clear();
+    }
+
     /**
      * The ReceiveHandler class is responsible for handling incoming messages from the server.
+     * It only decodes messages; everything that touches Swing is posted to the Event Dispatch Thread.
      */
     private class ReceiveHandler implements Runnable {
         @Override
         public void run() {
             try {
                 while (running) {
-                    if (input.hasNextLine()) {
-                        String message = input.nextLine();
-                        String[] parts = message.split("#");
+                    String[] parts = input.read();
+                    if (parts == null) {
+                        break; // The server closed the connection
+                    }
+                    if (parts.length > 1) {
                         String sender = parts[0];
                         String privateMessage = parts[1];
-                        privateMessage = privateMessage.replaceAll("@@@@", "\n");
-
-                        if (sender.equals("GLOBAL CHAT")) {
-                            globalChatArea.append(privateMessage + "\n\n\n");
-                        } else if (sender.equals("Client Exist response")) {
-                            String receiverName = parts[2];
-                            if (privateMessage.equals("true"))
-                                addCleint(receiverName);
-                            else
-                                JOptionPane.showMessageDialog(null, "The username doesn't exist.");
-                        } else {
-                            Optional<Window> result = openedWindows.stream()
-                                    .filter(a -> a.receiverName.equals(sender))
-                                    .findFirst();
-
-                            JLabel message4 = new JLabel("<html><p style='width:300px'>" + privateMessage.replace("\n", "<br>") + "</p></html>");
-                            JLabel message3 = new JLabel("<html><p style='width:300px'>" + privateMessage.replace("\n", "<br>") + "</p></html>");
-                            JLabel space = new JLabel(" ");
-                            space.setPreferredSize(new Dimension(10, 10));
-                            JLabel space2 = new JLabel(" ");
-                            space2.setPreferredSize(new Dimension(10, 10));
-
-                            message4.setOpaque(true);
-                            message4.setBackground(Color.decode("#daeaf6"));
-                            message4.setForeground(Color.black);
-                            message4.setFont(new Font("Arial", Font.BOLD, 30));
-
-                            message3.setOpaque(false);
-                            message3.setForeground(Color.decode("#faf3f0"));
-                            message3.setFont(new Font("Arial", Font.BOLD, 30));
-
-                            if (result.isPresent()) {
-                                JPanel senderInfo = new JPanel();
-                                senderInfo.setLayout(new BoxLayout(senderInfo, BoxLayout.X_AXIS));
-                                senderInfo.add(Box.createHorizontalGlue());
-                                senderInfo.setOpaque(false);
-
-                                JPanel senderInfo2 = new JPanel();
-                                senderInfo2.setOpaque(false);
-
-                                JLabel senderName = new JLabel(":" + sender);
-                                senderName.setHorizontalAlignment(JLabel.RIGHT);
-                                senderInfo.add(senderName);
-
-                                result.get().messages2.add(senderInfo);
-                                result.get().messages2.add(message4);
-                                result.get().messages2.add(space);
-                                result.get().messages2.revalidate();
-                                result.get().messages2.repaint();
-
-                                result.get().messages.add(new JLabel(" "));
-                                result.get().messages.add(message3);
-                                result.get().messages.add(space2);
-                                result.get().messages.revalidate();
-                                result.get().messages.repaint();
-
-                                result.get().setVisible(true);
-                            } else {
-                                Window newWindow = new Window(Client.this, sender);
-                                openedWindows.add(newWindow);
-                                addButton(newWindow, sender);
-
-                                JPanel senderInfo = new JPanel();
-                                senderInfo.setLayout(new BoxLayout(senderInfo, BoxLayout.X_AXIS));
-                                senderInfo.add(Box.createHorizontalGlue());
-                                JLabel senderName = new JLabel(":" + sender);
-                                senderName.setHorizontalAlignment(JLabel.RIGHT);
-                                senderInfo.add(senderName);
-
-                                newWindow.messages2.add(senderInfo);
-                                newWindow.messages2.add(message4);
-                                newWindow.messages2.add(space);
-                                newWindow.messages2.revalidate();
-                                newWindow.messages2.repaint();
-
-                                newWindow.messages.add(new JLabel(" "));
-                                newWindow.messages.add(message3);
-                                newWindow.messages.add(space2);
-                                newWindow.messages.revalidate();
-                                newWindow.messages.repaint();
-
-                                newWindow.setVisible(true);
+
+                        if (sender.equals("Protocol Upgrade response")) {
+                            // Later messages use the accepted format
+                            binary = privateMessage.equals(Protocol.BINARY) || privateMessage.equals(Protocol.DEFLATE);
+                            compressed = privateMessage.equals(Protocol.DEFLATE);
+                            if (binary) {
+                                startHeartbeats();
+                            }
+                        } else if (sender.equals("Presence Update")) {
+                            if (parts.length > 2 && !parts[2].isEmpty()) {
+                                List<String> names = Arrays.asList(parts[2].split("\n"));
+                                if (privateMessage.equals("joined")) {
+                                    onlineUsers.addAll(names);
+                                } else {
+                                    names.forEach(onlineUsers::remove);
+                                }
                             }
+                            presenceKnown = true;
+                        } else {
+                            post(parts);
                         }
                     }
                 }
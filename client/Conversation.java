@@ -0,0 +1,313 @@
+package client;
+
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * The Conversation class holds a private chat with one client.
+ *
+ * Its messages are kept as a list of strings, and the Window showing them is only built when
+ * the user opens the conversation. Messages that arrive while the window is not showing are
+ * counted as unread instead of opening it. A window that stays hidden for long enough is disposed,
+ * releasing its native resources and cached text layout, and is rebuilt from the list when the
+ * conversation is opened again.
+ *
+ * Like the global chat's Scrollback, the list is kept to the last messages by a SpillStore: once
+ * it holds a chunk more than the limit, the oldest whole chunks are written to a temporary file
+ * and dropped, and scrolling the window to the top puts the chunk before the first one in the list
+ * back at its start.
+ * Must be used on the Event Dispatch Thread.
+ */
+public class Conversation {
+    private String receiverName; // Name of the other client
+    private int maxMessages; // Messages kept in memory while following the chat, 0 for all
+    private ArrayList<Message> messages = new ArrayList<>(); // Messages from the first chunk in memory on, in the order they were exchanged
+    private SpillStore store = new SpillStore("talktik-private", ".bin"); // Chunks cut from the list
+    private Window window; // Window showing the conversation, null until opened and after disposal
+    private JButton button; // Button opening the conversation in the chats panel
+    private int unread; // Messages received while the window was not showing
+    private long hiddenSince; // When the window was first seen hidden, 0 while it shows
+
+    /**
+     * Constructor for the Conversation.
+     *
+     * @param receiverName The name of the other client.
+     * @param maxMessages  The messages to keep in memory while following the chat, 0 for all.
+     */
+    public Conversation(String receiverName, int maxMessages) {
+        this.receiverName = receiverName;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Returns the name of the other client.
+     *
+     * @return The receiver's name.
+     */
+    public String getReceiverName() {
+        return receiverName;
+    }
+
+    /**
+     * Returns the messages in memory, shared with the window showing them.
+     * Cutting or loading chunks changes the list at its start.
+     *
+     * @return The messages in the order they were exchanged.
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Returns the button opening the conversation.
+     *
+     * @return The button, or null before it is added.
+     */
+    public JButton getButton() {
+        return button;
+    }
+
+    /**
+     * Sets the button opening the conversation.
+     *
+     * @param button The button.
+     */
+    public void setButton(JButton button) {
+        this.button = button;
+    }
+
+    /**
+     * Returns the number of messages received while the window was not showing.
+     *
+     * @return The unread count.
+     */
+    public int getUnread() {
+        return unread;
+    }
+
+    /**
+     * Adds a message sent by this client.
+     *
+     * @param text The message.
+     */
+    public void addSent(String text) {
+        messages.add(new Message(null, text));
+    }
+
+    /**
+     * Adds a message received from the other client, counting it as unread unless the window shows.
+     * Call refresh once after adding messages.
+     *
+     * @param text The message.
+     */
+    public void addReceived(String text) {
+        messages.add(new Message(receiverName, text));
+        if (!isShowing()) {
+            unread++;
+        }
+    }
+
+    /**
+     * Cuts the oldest chunks if the list holds too many, and lays out the window once after
+     * messages were added, if it is showing or lost messages it had laid out.
+     */
+    public void refresh() {
+        boolean reading = isShowing() && !window.isFollowing();
+        boolean cut = trim(reading);
+        if (window != null && (cut || window.isVisible())) {
+            window.refreshMessages(cut);
+        }
+    }
+
+    /**
+     * Returns whether older messages are in the file rather than in the list.
+     *
+     * @return True if loadOlder can add messages.
+     */
+    public boolean hasOlder() {
+        return store.hasOlder();
+    }
+
+    /**
+     * Puts the chunk before the first one in the list back at the start of the list.
+     *
+     * @return True if messages were added.
+     */
+    public boolean loadOlder() {
+        byte[] bytes = store.loadOlder();
+        if (bytes == null) {
+            return false;
+        }
+        List<Message> chunk = new ArrayList<>(SpillStore.CHUNK_SIZE);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                boolean sent = buffer.get() != 0;
+                byte[] text = new byte[buffer.getInt()];
+                buffer.get(text);
+                chunk.add(new Message(sent ? null : receiverName, new String(text, StandardCharsets.UTF_8)));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // Keep the messages decoded before the damage
+        }
+        messages.addAll(0, chunk);
+        return true;
+    }
+
+    /**
+     * Cuts the oldest whole chunks while the list holds a chunk more than the limit,
+     * handing them to the store.
+     *
+     * @param reading Whether the user reads older messages, raising the limit.
+     * @return True if messages were cut.
+     */
+    private boolean trim(boolean reading) {
+        int cut = store.chunksToCut(messages.size(), maxMessages, reading);
+        if (cut == 0) {
+            return false;
+        }
+        for (int i = 0; i < cut; i++) {
+            int from = i * SpillStore.CHUNK_SIZE;
+            store.cut(() -> encode(from));
+        }
+        messages.subList(0, cut * SpillStore.CHUNK_SIZE).clear();
+        return true;
+    }
+
+    /**
+     * Encodes a chunk of the list for the store: per message, whether this client sent it,
+     * then the length and UTF-8 bytes of its text.
+     *
+     * @param from The index of the chunk's first message in the list.
+     * @return The encoded chunk.
+     * @throws IOException Never, as the bytes stay in memory.
+     */
+    private byte[] encode(int from) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        for (Message message : messages.subList(from, from + SpillStore.CHUNK_SIZE)) {
+            byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+            data.writeBoolean(message.getSender() == null);
+            data.writeInt(text.length);
+            data.write(text);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns whether the window is built and visible.
+     *
+     * @return True if the window shows.
+     */
+    public boolean isShowing() {
+        return window != null && window.isVisible();
+    }
+
+    /**
+     * Shows the window, building it first if needed, and clears the unread count.
+     *
+     * @param client The main client instance.
+     */
+    public void open(Client client) {
+        if (window == null) {
+            window = new Window(client, this);
+        }
+        unread = 0;
+        hiddenSince = 0;
+        window.refreshMessages(false);
+        window.setVisible(true);
+        window.setExtendedState(Frame.MAXIMIZED_BOTH);
+    }
+
+    /**
+     * Disposes the window if it has been hidden for longer than a limit. Called periodically;
+     * the first call that sees the window hidden starts the clock.
+     *
+     * @param now        The current time in milliseconds.
+     * @param idleMillis How long a window may stay hidden.
+     * @return True if the window was disposed.
+     */
+    public boolean releaseIfIdle(long now, long idleMillis) {
+        if (window == null) {
+            return false;
+        }
+        if (window.isVisible()) {
+            hiddenSince = 0;
+            return false;
+        }
+        if (hiddenSince == 0) {
+            hiddenSince = now;
+        }
+        if (now - hiddenSince < idleMillis) {
+            return false;
+        }
+        close();
+        trim(false); // Drop what was loaded back while reading
+        messages.trimToSize();
+        return true;
+    }
+
+    /**
+     * Disposes the window and deletes the file of older messages, for a conversation
+     * that is removed.
+     */
+    public void discard() {
+        close();
+        store.discard();
+    }
+
+    /**
+     * Disposes the window, if it is built. The messages are kept.
+     */
+    public void close() {
+        if (window != null) {
+            window.dispose();
+            window = null;
+        }
+        hiddenSince = 0;
+    }
+
+    /**
+     * A message of the conversation.
+     */
+    public static class Message {
+        private final String sender; // Name of the sender, null for messages sent by this client
+        private final String text; // The message
+
+        /**
+         * Constructor for the Message.
+         *
+         * @param sender The name of the sender, null for messages sent by this client.
+         * @param text   The message.
+         */
+        public Message(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+        }
+
+        /**
+         * Returns the name of the sender.
+         *
+         * @return The sender, or null for messages sent by this client.
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * Returns the text of the message.
+         *
+         * @return The message.
+         */
+        public String getText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+/**
+ * The MessageReader class reads messages from the server in either wire format.
+ * Binary frames are recognized by their leading version byte, which never starts a text line.
+ * Compressed frames are inflated into a second buffer, whose frames are returned one by one
+ * before anything else is read. A frame larger than the protocol allows is skipped, so one
+ * oversized message from a newer or misconfigured server does not end the connection.
+ */
+public class MessageReader {
+    private static final int BUFFER_SIZE = 8 * 1024; // Initial size of the read buffer
+
+    private InputStream input; // Stream to read from
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // Received bytes, kept in read mode
+    private ByteBuffer inflated = ByteBuffer.allocate(0); // Frames of the last compressed frame not yet returned
+    private Inflater inflater = new Inflater(); // Reused for every compressed frame
+    private long skip; // Bytes of an oversized frame still to be discarded
+
+    /**
+     * Constructor for the MessageReader.
+     *
+     * @param input The stream to read from.
+     */
+    public MessageReader(InputStream input) {
+        this.input = input;
+        buffer.flip(); // Start out empty
+    }
+
+    /**
+     * Reads the next message, blocking until it is complete.
+     *
+     * @return The parts of the message (sender or keyword first), or null at the end of the stream.
+     * @throws IOException If reading fails or the message is too large.
+     */
+    public String[] read() throws IOException {
+        if (inflated.hasRemaining()) {
+            return decodeInflated();
+        }
+        String[] parts;
+        while ((parts = decode()) == null) {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // Grow the buffer for long messages
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read < 0) {
+                return null;
+            }
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+        }
+        return parts;
+    }
+
+    /**
+     * Decodes the next complete message from the buffer.
+     *
+     * @return The parts of the message, or null if more bytes are needed.
+     * @throws IOException If a text line is longer than the protocol allows or a frame is malformed.
+     */
+    private String[] decode() throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (skip > 0) {
+            int skipped = (int) Math.min(skip, limit - start);
+            skip -= skipped;
+            start += skipped;
+            buffer.position(start);
+        }
+        if (start == limit) {
+            return null;
+        }
+        byte[] bytes = buffer.array();
+
+        // Binary frame
+        if (bytes[start] == Protocol.VERSION) {
+            if (limit - start < Protocol.HEADER_SIZE) {
+                return null;
+            }
+            int length = buffer.getInt(start + 2);
+            if (length < 0) {
+                throw new IOException("Malformed frame length: " + length);
+            }
+            if (length > Protocol.MAX_MESSAGE_SIZE) {
+                System.err.println("Skipping a frame of " + length + " bytes");
+                skip = Protocol.HEADER_SIZE + (long) length;
+                return decode();
+            }
+            if (limit - start < Protocol.HEADER_SIZE + length) {
+                return null;
+            }
+            buffer.position(start + Protocol.HEADER_SIZE + length);
+            if (bytes[start + 1] == Protocol.COMPRESSED) {
+                inflated = ByteBuffer.wrap(Protocol.inflate(inflater, bytes, start + Protocol.HEADER_SIZE, length));
+                return decodeInflated();
+            }
+            return Protocol.decodeFrame(bytes[start + 1], bytes, start + Protocol.HEADER_SIZE, length);
+        }
+
+        // Text line
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                buffer.position(i + 1);
+                return Protocol.parseLine(bytes, start, end);
+            }
+        }
+        if (limit - start > Protocol.MAX_MESSAGE_SIZE) {
+            throw new IOException("Line too long");
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the next frame of the last compressed frame.
+     *
+     * @return The parts of the message.
+     * @throws IOException If the inflated bytes do not hold whole frames.
+     */
+    private String[] decodeInflated() throws IOException {
+        int start = inflated.position();
+        if (inflated.remaining() < Protocol.HEADER_SIZE || inflated.get(start) != Protocol.VERSION) {
+            throw new IOException("Malformed compressed frame");
+        }
+        byte type = inflated.get(start + 1);
+        int length = inflated.getInt(start + 2);
+        if (type == Protocol.COMPRESSED || length < 0 || length > inflated.remaining() - Protocol.HEADER_SIZE) {
+            throw new IOException("Malformed compressed frame");
+        }
+        inflated.position(start + Protocol.HEADER_SIZE + length);
+        return Protocol.decodeFrame(type, inflated.array(), start + Protocol.HEADER_SIZE, length);
+    }
+}
@@ -0,0 +1,290 @@
+package client;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * The MessageView class shows the messages of a private chat: sent messages in the left column
+ * and received messages in the right one, in the order they were exchanged.
+ *
+ * The messages are read from the conversation's list and painted directly instead of as one
+ * HTML label per message. The line breaks of each message and the top of each row are worked out
+ * once for the current width and cached in the view, so adding a message lays out only that
+ * message, and painting looks up the first visible row by binary search and draws only the rows
+ * in the clip. A change of width wraps every message again.
+ */
+public class MessageView extends JComponent implements Scrollable {
+    private static final long serialVersionUID = 1L; // Version of the serialized form
+    private static final Font MESSAGE_FONT = new Font("Arial", Font.BOLD, 30); // Font of the message text
+    private static final Color BORDER_COLOR = Color.decode("#E8DFF5"); // Color around the columns
+    private static final Color COLUMN_COLOR = Color.decode("#faf3f0"); // Color of the columns
+    private static final Color SENT_COLOR = Color.decode("#ddedea"); // Background of sent messages
+    private static final Color RECEIVED_COLOR = Color.decode("#daeaf6"); // Background of received messages
+    private static final int BUBBLE_WIDTH = 300; // Widest message text, in pixels
+    private static final int PADDING_X = 30; // Space left and right of the columns
+    private static final int PADDING_Y = 10; // Space above and below the columns
+    private static final int SPACING = 10; // Space below each message
+
+    private List<Conversation.Message> messages; // Messages in the order they were exchanged, owned by the conversation
+    private int[][] breaks = new int[16][]; // Start and end index of each line of each laid out message
+    private int[] tops = new int[16]; // Top of each laid out row; tops[laidOut] is the height of all of them
+    private int laidOut; // Number of messages whose rows are in tops
+    private int layoutWidth = -1; // Width the cached line breaks were computed for
+    private Font labelFont = UIManager.getFont("Label.font"); // Font of the "ME:" and sender labels
+
+    /**
+     * Constructor for the MessageView.
+     *
+     * @param messages The messages to show. Messages added to the list are shown by the next refresh.
+     */
+    public MessageView(List<Conversation.Message> messages) {
+        this.messages = messages;
+        setOpaque(true);
+        setBackground(BORDER_COLOR);
+    }
+
+    /**
+     * Drops the cached layout, after messages were cut from or loaded back at the start of the list.
+     * The next refresh lays out every message again.
+     */
+    public void reset() {
+        laidOut = 0;
+    }
+
+    /**
+     * Lays out and repaints the view after messages were added.
+     */
+    public void refresh() {
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Returns the size needed to show every message at the width of the scroll pane.
+     *
+     * @return The preferred size.
+     */
+    @Override
+    public Dimension getPreferredSize() {
+        Container parent = getParent();
+        int width = parent instanceof JViewport ? parent.getWidth() : getWidth();
+        layOut(width);
+        return new Dimension(width, tops[laidOut] + 2 * PADDING_Y);
+    }
+
+    /**
+     * Paints the columns and the messages that intersect the clip.
+     *
+     * @param g The graphics context.
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        int height = tops[laidOut];
+        layOut(getWidth());
+        if (tops[laidOut] != height) {
+            revalidate(); // The width changed, so the rows have a new height
+        }
+
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        int columnWidth = columnWidth();
+        g.setColor(COLUMN_COLOR);
+        g.fillRect(PADDING_X, PADDING_Y, 2 * columnWidth, tops[laidOut]);
+
+        ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        FontMetrics labelMetrics = getFontMetrics(labelFont);
+        FontMetrics messageMetrics = getFontMetrics(MESSAGE_FONT);
+        int bubbleWidth = Math.min(BUBBLE_WIDTH, columnWidth);
+        for (int i = firstRowBelow(clip.y - PADDING_Y); i < laidOut && tops[i] + PADDING_Y < clip.y + clip.height; i++) {
+            Conversation.Message message = messages.get(i);
+            boolean sent = message.getSender() == null;
+            int left = PADDING_X + (sent ? 0 : columnWidth);
+            int y = PADDING_Y + tops[i];
+
+            g.setFont(labelFont);
+            g.setColor(Color.BLACK);
+            if (sent) {
+                g.drawString("ME:", left, y + labelMetrics.getAscent());
+            } else {
+                String label = ":" + message.getSender();
+                g.drawString(label, left + columnWidth - labelMetrics.stringWidth(label), y + labelMetrics.getAscent());
+            }
+            y += labelMetrics.getHeight();
+
+            int[] lines = breaks[i];
+            int lineCount = lines.length / 2;
+            g.setColor(sent ? SENT_COLOR : RECEIVED_COLOR);
+            g.fillRect(left, y, bubbleWidth, lineCount * messageMetrics.getHeight());
+            g.setFont(MESSAGE_FONT);
+            g.setColor(Color.BLACK);
+            for (int line = 0; line < lineCount; line++) {
+                int start = lines[2 * line];
+                int end = lines[2 * line + 1];
+                g.drawString(message.getText().substring(start, end), left, y + messageMetrics.getAscent());
+                y += messageMetrics.getHeight();
+            }
+        }
+    }
+
+    /**
+     * Wraps the messages that are not laid out yet, or all of them if the width changed,
+     * and records the top of each row.
+     *
+     * @param width The width of the view.
+     */
+    private void layOut(int width) {
+        if (width != layoutWidth) {
+            layoutWidth = width;
+            laidOut = 0;
+        }
+        if (laidOut == messages.size()) {
+            return;
+        }
+        if (tops.length <= messages.size()) {
+            tops = Arrays.copyOf(tops, Math.max(tops.length * 2, messages.size() + 1));
+            breaks = Arrays.copyOf(breaks, tops.length);
+        }
+        FontMetrics labelMetrics = getFontMetrics(labelFont);
+        FontMetrics messageMetrics = getFontMetrics(MESSAGE_FONT);
+        int bubbleWidth = Math.max(1, Math.min(BUBBLE_WIDTH, columnWidth()));
+        for (; laidOut < messages.size(); laidOut++) {
+            breaks[laidOut] = wrap(messages.get(laidOut).getText(), messageMetrics, bubbleWidth);
+            int height = labelMetrics.getHeight() + breaks[laidOut].length / 2 * messageMetrics.getHeight() + SPACING;
+            tops[laidOut + 1] = tops[laidOut] + height;
+        }
+    }
+
+    /**
+     * Returns the width of one column.
+     *
+     * @return The width in pixels, never negative.
+     */
+    private int columnWidth() {
+        return Math.max(0, (layoutWidth - 2 * PADDING_X) / 2);
+    }
+
+    /**
+     * Finds the first row whose bottom is below a position.
+     *
+     * @param y The position, relative to the top of the first row.
+     * @return The index of the row, or laidOut if there is none.
+     */
+    private int firstRowBelow(int y) {
+        int low = 0;
+        int high = laidOut;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tops[middle + 1] <= y) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Breaks a message into lines no wider than a width, at spaces where possible.
+     * Newlines in the message always start a new line.
+     *
+     * @param text    The message.
+     * @param metrics The metrics of the message font.
+     * @param width   The widest line, in pixels.
+     * @return The start and end index of each line, in pairs.
+     */
+    private static int[] wrap(String text, FontMetrics metrics, int width) {
+        int[] breaks = new int[8];
+        int count = 0;
+        int start = 0;
+        while (start <= text.length()) {
+            int newline = text.indexOf('\n', start);
+            int paragraphEnd = newline < 0 ? text.length() : newline;
+            int lineStart = start;
+            do {
+                int end = lineStart;
+                int lastSpace = -1;
+                int lineWidth = 0;
+                while (end < paragraphEnd) {
+                    lineWidth += metrics.charWidth(text.charAt(end));
+                    if (lineWidth > width && end > lineStart) {
+                        break;
+                    }
+                    if (text.charAt(end) == ' ') {
+                        lastSpace = end;
+                    }
+                    end++;
+                }
+                if (end < paragraphEnd && lastSpace > lineStart) {
+                    end = lastSpace; // Break at the last space that fits
+                }
+                if (count + 2 > breaks.length) {
+                    breaks = Arrays.copyOf(breaks, breaks.length * 2);
+                }
+                breaks[count++] = lineStart;
+                breaks[count++] = end;
+                lineStart = end < paragraphEnd && text.charAt(end) == ' ' ? end + 1 : end;
+            } while (lineStart < paragraphEnd);
+            start = paragraphEnd + 1;
+        }
+        return Arrays.copyOf(breaks, count);
+    }
+
+    /**
+     * Returns the size of the viewport that would show the whole view.
+     *
+     * @return The preferred size.
+     */
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    /**
+     * Returns the distance to scroll for one click of the scroll bar arrows.
+     *
+     * @param visibleRect The visible part of the view.
+     * @param orientation The scroll direction.
+     * @param direction   Negative to scroll up, positive to scroll down.
+     * @return The height of one line of message text.
+     */
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return getFontMetrics(MESSAGE_FONT).getHeight();
+    }
+
+    /**
+     * Returns the distance to scroll for one click in the scroll bar track.
+     *
+     * @param visibleRect The visible part of the view.
+     * @param orientation The scroll direction.
+     * @param direction   Negative to scroll up, positive to scroll down.
+     * @return The height of the visible part.
+     */
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return visibleRect.height;
+    }
+
+    /**
+     * Makes the view as wide as the scroll pane, so messages wrap instead of scrolling sideways.
+     *
+     * @return True.
+     */
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    /**
+     * Lets the view be taller than the scroll pane.
+     *
+     * @return False.
+     */
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+}
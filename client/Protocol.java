@@ -0,0 +1,348 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Protocol class encodes messages sent to the server and decodes messages received from it,
+ * in either the legacy '#'-separated text format or the binary frame format.
+ *
+ * A binary frame is a version byte, a type byte, the length of the rest of the frame as an int,
+ * then every field as an int length followed by UTF-8 bytes. The client starts in the text format,
+ * asks for "binary/1+deflate" right after its username, and switches its own output only once the
+ * server has accepted. With "binary/1+deflate" large frames may be sent as COMPRESSED frames,
+ * whose body is the deflated bytes of one or more frames.
+ */
+public final class Protocol {
+    public static final byte VERSION = 1; // First byte of every binary frame
+    public static final String BINARY = "binary/1"; // Name of the binary format in the upgrade handshake
+    public static final String DEFLATE = "binary/1+deflate"; // Name of the binary format with compressed frames
+    public static final String PRESENCE = "presence/1"; // Version of presence updates a client asks for
+    public static final int MAX_MESSAGE_SIZE = 1024 * 1024; // Largest line or frame accepted from the server
+    public static final int MAX_INFLATED_SIZE = 64 * MAX_MESSAGE_SIZE; // Largest batch a compressed frame may inflate to
+    public static final int COMPRESS_THRESHOLD = 256; // Smallest frame the client deflates
+
+    public static final byte GLOBAL = 1; // Global chat message: text
+    public static final byte PRIVATE = 2; // Private message: receiver (or sender) name, text
+    public static final byte EXIST = 3; // Existence check: name
+    public static final byte EXIST_RESPONSE = 4; // Existence check result: "true" or "false", name
+    public static final byte NAME_TAKEN = 5; // Username rejected: name
+    public static final byte EXIT = 6; // Client leaves: no fields
+    public static final byte UPGRADE = 7; // Format request: format name
+    public static final byte UPGRADE_RESPONSE = 8; // Format chosen by the server: format name
+    public static final byte ROOM_JOIN = 9; // Join a room: room name
+    public static final byte ROOM_LEAVE = 10; // Leave a room: room name
+    public static final byte ROOM_MESSAGE = 11; // Room chat message: room name, text
+    public static final byte PRESENCE_SUBSCRIBE = 12; // Presence request: presence version name
+    public static final byte PRESENCE_UPDATE = 13; // Online clients: "joined" or "left", names separated by newlines
+    public static final byte HEARTBEAT = 14; // Binary format only: keeps an idle client connected, any text
+    public static final byte COMPRESSED = 15; // Binary format only: deflated binary frames instead of fields
+
+    static final int HEADER_SIZE = 6; // Version byte, type byte and frame length
+    private static final String ESCAPED_NEWLINE = "@@@@"; // Newline replacement in the text format
+
+    // Leading keyword of each message type in the text format; private messages start with a name instead
+    private static final String[] KEYWORDS = {
+            null, "GLOBAL CHAT", null, "Client Exist", "Client Exist response", "Name Taken response",
+            "EXIT", "Protocol Upgrade", "Protocol Upgrade response", "Room Join", "Room Leave", "Room Message",
+            "Presence Subscribe", "Presence Update", "Heartbeat"
+    };
+    private static final byte[][] KEYWORD_BYTES = new byte[KEYWORDS.length][]; // UTF-8 form of the keywords
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            if (KEYWORDS[i] != null) {
+                KEYWORD_BYTES[i] = KEYWORDS[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns whether a name is reserved because it is spelled like a message keyword,
+     * so a text line addressed to it would be read as that message instead.
+     *
+     * @param name The client name.
+     * @return True if the name may not be registered.
+     */
+    public static boolean isReservedName(String name) {
+        for (String keyword : KEYWORDS) {
+            if (keyword != null && keyword.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes a message in the text format, including the line terminator.
+     *
+     * @param type   The message type.
+     * @param fields The fields of the message.
+     * @return The encoded bytes.
+     */
+    public static byte[] encodeText(byte type, String... fields) {
+        StringBuilder line = new StringBuilder();
+        String keyword = KEYWORDS[type];
+        if (keyword != null) {
+            line.append(keyword);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (keyword != null || i > 0) {
+                line.append('#');
+            }
+            line.append(fields[i].replace("\n", ESCAPED_NEWLINE));
+        }
+        line.append('\n');
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a message in the binary format.
+     *
+     * @param type   The message type.
+     * @param fields The fields of the message.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeBinary(byte type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(VERSION).put(type).putInt(length);
+        for (byte[] field : encoded) {
+            frame.putInt(field.length).put(field);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Compresses a binary frame into a compressed frame, if it is large enough and gets smaller.
+     * Frames the server would refuse once inflated are left as they are, and refused as such.
+     *
+     * @param frame    The encoded binary frame.
+     * @param deflater The deflater to use, reset before use.
+     * @return The compressed frame, or the frame itself.
+     */
+    public static byte[] deflate(byte[] frame, Deflater deflater) {
+        if (frame.length < COMPRESS_THRESHOLD || frame.length > HEADER_SIZE + MAX_MESSAGE_SIZE) {
+            return frame;
+        }
+        deflater.reset();
+        deflater.setInput(frame);
+        deflater.finish();
+        byte[] output = new byte[frame.length]; // Output that would not fit is not worth sending
+        int length = HEADER_SIZE;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return frame;
+        }
+        ByteBuffer.wrap(output).put(VERSION).put(COMPRESSED).putInt(length - HEADER_SIZE);
+        byte[] compressed = new byte[length];
+        System.arraycopy(output, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    /**
+     * Inflates the body of a compressed frame.
+     *
+     * @param inflater The inflater to use, reset before use.
+     * @param bytes    The array holding the body.
+     * @param offset   The index of the body.
+     * @param length   The length of the body.
+     * @return The inflated frames.
+     * @throws IOException If the body is not valid deflate data or inflates past MAX_INFLATED_SIZE.
+     */
+    public static byte[] inflate(Inflater inflater, byte[] bytes, int offset, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        byte[] output = new byte[Math.min(MAX_INFLATED_SIZE, Math.max(64, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size >= MAX_INFLATED_SIZE) {
+                        throw new IOException("Compressed frame too large");
+                    }
+                    byte[] bigger = new byte[(int) Math.min(MAX_INFLATED_SIZE, output.length * 2L)];
+                    System.arraycopy(output, 0, bigger, 0, size);
+                    output = bigger;
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(output, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Parses a line of the text format in place into its parts: the sender or keyword,
+     * then the message fields with newlines restored. Known keywords are matched against
+     * the bytes and returned as constants, so only the fields themselves are allocated.
+     * Everything after the first '#' is the content, so '#' inside user text survives;
+     * only existence replies, room messages and presence updates carry a second field.
+     *
+     * @param bytes The array holding the line.
+     * @param start The index of the first byte of the line.
+     * @param end   The index just past the last byte of the line, without its terminator.
+     * @return The parts of the message.
+     */
+    public static String[] parseLine(byte[] bytes, int start, int end) {
+        int hash = indexOf(bytes, start, end, (byte) '#');
+        if (hash < 0) {
+            return new String[] {new String(bytes, start, end - start, StandardCharsets.UTF_8)};
+        }
+
+        String first = keyword(bytes, start, hash);
+        if (first == null) {
+            first = new String(bytes, start, hash - start, StandardCharsets.UTF_8); // A sender name
+        } else if (first == KEYWORDS[EXIST_RESPONSE]) {
+            int second = indexOf(bytes, hash + 1, end, (byte) '#');
+            if (second >= 0) {
+                return new String[] {first, new String(bytes, hash + 1, second - hash - 1, StandardCharsets.UTF_8),
+                        new String(bytes, second + 1, end - second - 1, StandardCharsets.UTF_8)};
+            }
+        } else if (first == KEYWORDS[ROOM_MESSAGE] || first == KEYWORDS[PRESENCE_UPDATE]) {
+            int second = indexOf(bytes, hash + 1, end, (byte) '#'); // Room names and update kinds never contain '#'
+            if (second >= 0) {
+                return new String[] {first, new String(bytes, hash + 1, second - hash - 1, StandardCharsets.UTF_8),
+                        unescape(bytes, second + 1, end)};
+            }
+        }
+        return new String[] {first, unescape(bytes, hash + 1, end)};
+    }
+
+    /**
+     * Returns the keyword constant spelled by a range of bytes.
+     *
+     * @param bytes The array holding the range.
+     * @param from  The first index of the range.
+     * @param to    The index just past the range.
+     * @return The keyword, or null if the range is not a keyword.
+     */
+    private static String keyword(byte[] bytes, int from, int to) {
+        for (int i = 0; i < KEYWORD_BYTES.length; i++) {
+            byte[] keyword = KEYWORD_BYTES[i];
+            if (keyword != null && keyword.length == to - from && matches(bytes, from, keyword)) {
+                return KEYWORDS[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the bytes at an index equal a keyword.
+     *
+     * @param bytes   The array to check.
+     * @param from    The index to start at.
+     * @param keyword The keyword bytes.
+     * @return True if the bytes match.
+     */
+    private static boolean matches(byte[] bytes, int from, byte[] keyword) {
+        for (int i = 0; i < keyword.length; i++) {
+            if (bytes[from + i] != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first occurrence of a byte in a range.
+     *
+     * @param bytes The array to search.
+     * @param from  The first index to search.
+     * @param to    The index just past the range.
+     * @param value The byte to find.
+     * @return The index, or -1 if the byte does not occur.
+     */
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the content of a text message, turning every "@@@@" back into a newline
+     * while copying, instead of running a regular expression over the decoded string.
+     *
+     * @param bytes The array holding the content.
+     * @param from  The first index of the content.
+     * @param to    The index just past the content.
+     * @return The unescaped content.
+     */
+    private static String unescape(byte[] bytes, int from, int to) {
+        byte[] unescaped = null;
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            if (i + 4 <= to && bytes[i] == '@' && bytes[i + 1] == '@' && bytes[i + 2] == '@' && bytes[i + 3] == '@') {
+                if (unescaped == null) {
+                    unescaped = new byte[to - from];
+                    length = i - from;
+                    System.arraycopy(bytes, from, unescaped, 0, length);
+                }
+                unescaped[length++] = '\n';
+                i += 3;
+            } else if (unescaped != null) {
+                unescaped[length++] = bytes[i];
+            }
+        }
+        if (unescaped == null) {
+            return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        }
+        return new String(unescaped, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a binary frame into the same parts a text line would have:
+     * the sender or keyword, then the message fields.
+     *
+     * @param type   The message type.
+     * @param bytes  The array holding the frame.
+     * @param offset The index of the first field.
+     * @param length The total length of the fields.
+     * @return The parts of the message.
+     */
+    public static String[] decodeFrame(byte type, byte[] bytes, int offset, int length) {
+        ByteBuffer fields = ByteBuffer.wrap(bytes, offset, length);
+        String keyword = type >= 0 && type < KEYWORDS.length ? KEYWORDS[type] : null;
+        String[] parts = new String[8];
+        int count = 0;
+        if (keyword != null) {
+            parts[count++] = keyword;
+        }
+        while (fields.remaining() >= 4 && count < parts.length) {
+            int size = fields.getInt();
+            if (size < 0 || size > fields.remaining()) {
+                break;
+            }
+            parts[count++] = new String(bytes, fields.position(), size, StandardCharsets.UTF_8);
+            fields.position(fields.position() + size);
+        }
+        String[] result = new String[count];
+        System.arraycopy(parts, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.text.BadLocationException;
+
+/**
+ * The Scrollback class keeps a chat text area to the last messages so appending stays cheap
+ * however long the client runs.
+ *
+ * The chunks cut from the area are kept by a SpillStore as UTF-8 text: once the area holds a
+ * chunk more than the limit, the oldest whole chunks are cut in one edit, and scrolling to the
+ * top puts the chunk before the first one shown back at the top of the area.
+ * Must be used on the Event Dispatch Thread.
+ */
+public class Scrollback {
+    private JTextArea area; // Text area showing the messages
+    private JScrollPane scrollPane; // Scroll pane around the area
+    private int maxMessages; // Messages kept in the area while following the chat
+    private StringBuilder pending = new StringBuilder(); // Text added since the last flush
+    private Deque<Integer> chunkLengths = new ArrayDeque<>(); // Characters of each chunk in the area, oldest first
+    private long messageCount; // Messages added so far
+    private SpillStore store = new SpillStore("talktik-chat", ".txt"); // Chunks cut from the area
+
+    /**
+     * Constructor for the Scrollback. Loads older messages when the area is scrolled to the top.
+     *
+     * @param area        The text area showing the messages.
+     * @param scrollPane  The scroll pane around the area.
+     * @param maxMessages The messages to keep in the area while following the chat, 0 for no limit.
+     */
+    public Scrollback(JTextArea area, JScrollPane scrollPane, int maxMessages) {
+        this.area = area;
+        this.scrollPane = scrollPane;
+        this.maxMessages = maxMessages;
+        scrollPane.getViewport().addChangeListener((ChangeEvent e) -> {
+            if (store.hasOlder() && scrollPane.getViewport().getViewPosition().y == 0 && !atBottom()) {
+                SwingUtilities.invokeLater(this::loadOlder); // Not while the viewport is notifying
+            }
+        });
+    }
+
+    /**
+     * Adds a message. It is shown by the next flush.
+     *
+     * @param message The message.
+     */
+    public void add(String message) {
+        int length = pending.length();
+        pending.append(message).append("\n\n\n");
+        if (messageCount % SpillStore.CHUNK_SIZE == 0) {
+            chunkLengths.addLast(0);
+        }
+        chunkLengths.addLast(chunkLengths.pollLast() + pending.length() - length);
+        messageCount++;
+    }
+
+    /**
+     * Appends the added messages in one edit, cuts the oldest chunks if the area holds too many,
+     * and keeps the area scrolled to the bottom if it was there.
+     */
+    public void flush() {
+        if (pending.length() == 0) {
+            return;
+        }
+        boolean following = atBottom();
+        area.append(pending.toString());
+        pending.setLength(0);
+
+        int cut = store.chunksToCut(messageCount - (long) store.getFirstChunk() * SpillStore.CHUNK_SIZE, maxMessages, !following);
+        int cutLength = 0;
+        for (int i = 0; i < cut; i++) {
+            int offset = cutLength;
+            int length = chunkLengths.pollFirst();
+            store.cut(() -> {
+                try {
+                    return area.getText(offset, length).getBytes(StandardCharsets.UTF_8);
+                } catch (BadLocationException e) {
+                    throw new IOException(e); // Reported by the store like a failed write
+                }
+            });
+            cutLength += length;
+        }
+        if (cut > 0) {
+            area.replaceRange(null, 0, cutLength);
+        }
+        if (following) {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum())); // Once the area is laid out
+        }
+    }
+
+    /**
+     * Returns whether the area is scrolled to the bottom, or too short to scroll.
+     *
+     * @return True if the newest messages are in view.
+     */
+    private boolean atBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 1;
+    }
+
+    /**
+     * Puts the chunk before the first one shown back at the top of the area,
+     * keeping the same messages in view.
+     */
+    private void loadOlder() {
+        if (scrollPane.getViewport().getViewPosition().y != 0) {
+            return;
+        }
+        byte[] bytes = store.loadOlder();
+        if (bytes == null) {
+            return;
+        }
+        String text = new String(bytes, StandardCharsets.UTF_8);
+
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int fromBottom = bar.getMaximum() - bar.getValue();
+        area.insert(text, 0);
+        chunkLengths.addFirst(text.length());
+        scrollPane.validate(); // Lay out the taller area now so the position can be restored
+        bar.setValue(bar.getMaximum() - fromBottom);
+    }
+}
@@ -0,0 +1,164 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SpillStore class keeps the older part of a message list in a temporary file, so a chat
+ * holds only its last messages in memory however long the client runs. It is shared by the
+ * global chat's Scrollback and the private chats' Conversations, which only differ in how a
+ * chunk of their messages is turned into bytes.
+ *
+ * Messages are counted in chunks of CHUNK_SIZE. Once a chat holds a chunk more than its limit,
+ * the oldest whole chunks are cut and written to the end of the file, with the file offset of
+ * each chunk kept in memory. Loading older messages reads the chunk before the first one in memory
+ * back from the file; such a chunk is in the file already and is not written again when it is cut.
+ * While the user reads older messages the limit is raised by READING_FACTOR, so history they
+ * loaded is not cut again under them.
+ * Must be used on the Event Dispatch Thread.
+ */
+public class SpillStore {
+    public static final int CHUNK_SIZE = 100; // Messages cut or loaded at a time
+    private static final int READING_FACTOR = 4; // Limit multiplier while the user reads older messages
+
+    private String prefix; // Name prefix of the temporary file
+    private String suffix; // Name suffix of the temporary file
+    private int firstChunk; // Index of the oldest chunk in memory
+    private List<Long> chunkOffsets = new ArrayList<>(); // File offset of each chunk written out
+    private File spillFile; // Temporary file of the chunks cut from memory, created on the first cut
+    private RandomAccessFile file; // The open spill file
+    private long fileLength; // Bytes written to the file
+
+    /**
+     * The Chunk interface encodes a chunk that is cut and not in the file yet.
+     */
+    public interface Chunk {
+        /**
+         * Returns the bytes of the chunk.
+         *
+         * @return The encoded chunk.
+         * @throws IOException If the chunk cannot be encoded.
+         */
+        byte[] encode() throws IOException;
+    }
+
+    /**
+     * Constructor for the SpillStore. The file is only created once a chunk is cut.
+     *
+     * @param prefix The name prefix of the temporary file.
+     * @param suffix The name suffix of the temporary file.
+     */
+    public SpillStore(String prefix, String suffix) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Returns how many of the oldest chunks to cut so that at most a chunk more than a limit
+     * stays in memory.
+     *
+     * @param inMemory    The messages in memory, from the first chunk on.
+     * @param maxMessages The messages to keep while following the chat, 0 for all.
+     * @param reading     Whether the user reads older messages, raising the limit.
+     * @return The number of whole chunks to cut.
+     */
+    public int chunksToCut(long inMemory, int maxMessages, boolean reading) {
+        if (maxMessages <= 0) {
+            return 0;
+        }
+        int limit = reading ? maxMessages * READING_FACTOR : maxMessages;
+        int cut = 0;
+        while (inMemory - (long) (cut + 1) * CHUNK_SIZE >= limit) {
+            cut++;
+        }
+        return cut;
+    }
+
+    /**
+     * Cuts the oldest chunk in memory, writing it to the end of the file unless it was
+     * loaded back from there. Call once per chunk, oldest first.
+     *
+     * @param chunk The chunk, only encoded if it has to be written.
+     */
+    public void cut(Chunk chunk) {
+        if (firstChunk++ < chunkOffsets.size()) {
+            return; // Loaded back from the file, which has it already
+        }
+        chunkOffsets.add(fileLength);
+        try {
+            if (file == null) {
+                spillFile = File.createTempFile(prefix, suffix);
+                spillFile.deleteOnExit();
+                file = new RandomAccessFile(spillFile, "rw");
+            }
+            byte[] bytes = chunk.encode();
+            file.seek(fileLength);
+            file.write(bytes);
+            fileLength += bytes.length;
+        } catch (IOException e) {
+            e.printStackTrace(); // The chunk is lost and loads back empty, but memory stays bounded
+        }
+    }
+
+    /**
+     * Returns the index of the oldest chunk in memory, which is also the number of chunks before it.
+     *
+     * @return The index of the first chunk.
+     */
+    public int getFirstChunk() {
+        return firstChunk;
+    }
+
+    /**
+     * Returns whether older messages are in the file rather than in memory.
+     *
+     * @return True if loadOlder can return a chunk.
+     */
+    public boolean hasOlder() {
+        return firstChunk > 0;
+    }
+
+    /**
+     * Reads the chunk before the first one in memory back from the file. The caller
+     * puts its messages back at the start of the chat.
+     *
+     * @return The encoded chunk, or null if there is none or it cannot be read.
+     */
+    public byte[] loadOlder() {
+        if (firstChunk == 0) {
+            return null;
+        }
+        try {
+            long start = chunkOffsets.get(firstChunk - 1);
+            long end = firstChunk < chunkOffsets.size() ? chunkOffsets.get(firstChunk) : fileLength;
+            byte[] bytes = new byte[(int) (end - start)];
+            if (bytes.length > 0) {
+                file.seek(start);
+                file.readFully(bytes);
+            }
+            firstChunk--;
+            return bytes;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Closes and deletes the file, for a chat that is removed.
+     */
+    public void discard() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spillFile.delete();
+            file = null;
+        }
+    }
+}
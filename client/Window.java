@@ -3,28 +3,30 @@ package client;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
-import javax.swing.border.EmptyBorder;
 
 /**
  * The Window class represents a private chat window between two users.
  * It provides a user interface for sending and receiving private messages.
+ * It is built when its conversation is opened and shows the conversation's messages.
  */
 public class Window extends JFrame {
     public String receiverName; // Name of the receiver
+    private Conversation conversation; // Conversation shown by the window
     private Client client; // Reference to the main client
     private String clientName; // Name of the current client
-    JPanel messages; // Panel to display sent messages
-    JPanel messages2; // Panel to display received messages
+    private MessageView messageView; // View of the sent and received messages
+    private JScrollPane scrollMessages; // Scroll pane around the view
 
     /**
      * Constructor for the Window class.
      *
      * @param client       The main client instance.
-     * @param receiverName The name of the receiver for this private chat.
+     * @param conversation The private chat to show.
      */
-    public Window(Client client, String receiverName) {
+    public Window(Client client, Conversation conversation) {
         this.client = client;
-        this.receiverName = receiverName;
+        this.conversation = conversation;
+        this.receiverName = conversation.getReceiverName();
         this.clientName = client.getClientName();
 
         // Set up the window
@@ -51,9 +53,8 @@ public class Window extends JFrame {
         // Add action listener for the disconnect menu item
         clearItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                // Remove the window from the client and hide it
-                client.removeWindow(Window.this);
-                setVisible(false);
+                // Remove the conversation from the client, which disposes the window
+                client.removeConversation(conversation);
             }
         });
 
@@ -61,12 +62,6 @@ public class Window extends JFrame {
         menuBar.add(fileMenu);
         setJMenuBar(menuBar);
 
-        // Set up the main panel
-        JPanel mainPanel = new JPanel();
-        mainPanel.setLayout(new GridLayout(1, 2));
-        mainPanel.setBackground(Color.decode("#E8DFF5"));
-        mainPanel.setBorder(new EmptyBorder(10, 30, 10, 30));
-
         // Set up the text input area
         JTextArea textInput = new JTextArea();
         textInput.setColumns(30);
@@ -89,30 +84,26 @@ public class Window extends JFrame {
         bottomPanel.add(send);
         add(bottomPanel, BorderLayout.SOUTH);
 
-        // Set up the messages panels
-        Color allMessagesColor = Color.decode("#faf3f0");
-        messages = new JPanel();
-        messages.setLayout(new BoxLayout(messages, BoxLayout.Y_AXIS));
-        messages.setBackground(allMessagesColor);
-
-        messages2 = new JPanel();
-        messages2.setLayout(new BoxLayout(messages2, BoxLayout.Y_AXIS));
-        messages2.setBackground(allMessagesColor);
+        // Set up the view of the messages
+        messageView = new MessageView(conversation.getMessages());
 
         // Set up the scroll pane for messages
-        JScrollPane scrollMessages = new JScrollPane(mainPanel, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollMessages = new JScrollPane(messageView, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+
+        // Load older messages back from the conversation's file when scrolled to the top
+        scrollMessages.getViewport().addChangeListener(e -> {
+            if (conversation.hasOlder() && scrollMessages.getViewport().getViewPosition().y == 0 && !isFollowing()) {
+                SwingUtilities.invokeLater(this::loadOlder); // Not while the viewport is notifying
+            }
+        });
 
         // Add a component listener to auto-scroll to the bottom
-        mainPanel.addComponentListener(new ComponentAdapter() {
+        messageView.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
                 scrollMessages.getVerticalScrollBar().setValue(scrollMessages.getVerticalScrollBar().getMaximum());
             }
         });
-
-        // Add the messages panels to the main panel
-        mainPanel.add(messages);
-        mainPanel.add(messages2);
         add(scrollMessages);
 
         // Set the background color of the content pane
@@ -125,45 +116,12 @@ public class Window extends JFrame {
         send.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 if (!textInput.getText().trim().isEmpty()) {
-                    // Create labels for the sent message
-                    JLabel message1 = new JLabel("<html><p style='width:300px'>" + textInput.getText().replace("\n", "<br>") + "</p></html>");
-                    JLabel message2 = new JLabel("<html><p style='width:300px'>" + textInput.getText().replace("\n", "<br>") + "</p></html>");
-
-                    // Create space labels for formatting
-                    JLabel space = new JLabel(" ");
-                    space.setPreferredSize(new Dimension(10, 10));
-                    JLabel space2 = new JLabel(" ");
-                    space2.setPreferredSize(new Dimension(10, 10));
-
-                    // Style the sent message
-                    message1.setOpaque(true);
-                    message1.setBackground(Color.decode("#ddedea"));
-                    message1.setForeground(Color.black);
-                    message1.setFont(new Font("Arial", Font.BOLD, 30));
-
-                    // Style the received message
-                    message2.setOpaque(false);
-                    message2.setForeground(Color.decode("#faf3f0"));
-                    message2.setFont(new Font("Arial", Font.BOLD, 30));
-
-                    // Add the sent message to the messages panel
-                    JLabel me = new JLabel("ME:");
-                    messages.add(me);
-                    messages.add(message1);
-                    messages.add(space);
-                    messages.revalidate();
-                    messages.repaint();
-
-                    // Add the received message to the messages2 panel
-                    messages2.add(new JLabel(" "));
-                    messages2.add(message2);
-                    messages2.add(space2);
-                    messages2.revalidate();
-                    messages2.repaint();
+                    // Show the sent message
+                    conversation.addSent(textInput.getText());
+                    conversation.refresh();
 
                     // Send the message to the receiver
-                    String newMessage = textInput.getText().replace("\n", "@@@@");
-                    client.sendPrivateMessage(receiverName, newMessage);
+                    client.sendPrivateMessage(receiverName, textInput.getText());
 
                     // Clear the text input area
                     textInput.setText("");
@@ -171,4 +129,42 @@ public class Window extends JFrame {
             }
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * Lays out and repaints the messages once after messages were added.
+     *
+     * @param cut Whether messages were also cut from the start of the list.
+     */
+    void refreshMessages(boolean cut) {
+        if (cut) {
+            messageView.reset();
+        }
+        messageView.refresh();
+    }
+
+    /**
+     * Returns whether the messages are scrolled to the bottom, or too short to scroll.
+     *
+     * @return True if the newest messages are in view.
+     */
+    boolean isFollowing() {
+        JScrollBar bar = scrollMessages.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 1;
+    }
+
+    /**
+     * Puts the chunk of messages before the first one shown back at the top,
+     * keeping the same messages in view.
+     */
+    private void loadOlder() {
+        if (scrollMessages.getViewport().getViewPosition().y != 0 || !conversation.loadOlder()) {
+            return;
+        }
+        JScrollBar bar = scrollMessages.getVerticalScrollBar();
+        int fromBottom = bar.getMaximum() - bar.getValue();
+        messageView.reset();
+        messageView.refresh();
+        scrollMessages.validate(); // Lay out the taller view now so the position can be restored
+        SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - fromBottom)); // After the resize listener scrolled down
+    }
+}
@@ -1,22 +1,27 @@
 package server;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The ClientHandler class is responsible for managing communication with a single client.
  * It handles incoming messages from the client and routes them to the appropriate destination
  * (global chat or private message).
+ * It runs either as its own platform thread or as a task on the server's virtual thread executor.
+ * Outgoing messages are queued and written by a separate writer, so senders never wait on this client's socket.
+ * The writer batches messages that arrive within a short window into a single flush.
  */
-public class ClientHandler extends Thread {
+public class ClientHandler extends Thread implements Connection {
     private Server server; // Reference to the server
     private Socket clientSocket; // Socket for communication with the client
-    private PrintWriter output; // Output stream to send messages to the client
-    private Scanner input; // Input stream to receive messages from the client
+    private OutputStream output; // Output stream to send messages to the client
+    private OutboundQueue<OutboundMessage> outbound; // Encoded messages waiting for the writer
+    private MessageReader input; // Reader for messages from the client
     private String clientName; // Name of the client
-    private String receiverName; // Name of the receiver for private messages
+    private IdleWatch idleWatch; // Disconnects the client when it goes quiet
 
     /**
      * Constructor for the ClientHandler.
@@ -27,6 +32,7 @@ public class ClientHandler extends Thread {
     public ClientHandler(Server server, Socket clientSocket) {
         this.server = server;
         this.clientSocket = clientSocket;
+        this.outbound = server.createOutboundQueue(true);
     }
 
     /**
@@ -34,17 +40,22 @@ public class ClientHandler extends Thread {
      *
      * @return The client's name.
      */
+    @Override
     public String getClientName() {
         return clientName;
     }
 
     /**
-     * Sends a message to the client.
+     * Queues a message for the client. The message is encoded and written by the writer,
+     * so this method returns without touching the socket.
      *
      * @param message The message to be sent.
      */
-    public void sendMessage(String message) {
-        output.println(message);
+    @Override
+    public void send(OutboundMessage message) {
+        if (!outbound.offer(message)) {
+            disconnect(); // The client is too slow to keep up
+        }
     }
 
     /**
@@ -53,7 +64,27 @@ public class ClientHandler extends Thread {
      * @param message The global message to be sent.
      */
     public void sendGlobalMessage(String message) {
-        output.println(message);
+        send(OutboundMessage.global(message));
+    }
+
+    /**
+     * Returns the number of messages queued for the client.
+     *
+     * @return The outbound queue depth.
+     */
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * Returns the number of messages dropped because the client's queue was full.
+     *
+     * @return The drop count.
+     */
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
     }
 
     /**
@@ -64,52 +95,112 @@ public class ClientHandler extends Thread {
     public void run() {
         try {
             // Initialize output and input streams
-            output = new PrintWriter(clientSocket.getOutputStream(), true);
-            input = new Scanner(clientSocket.getInputStream());
+            output = new BufferedOutputStream(clientSocket.getOutputStream(), server.getFlushBytes());
+            input = new MessageReader(clientSocket.getInputStream(), server.getMetrics());
+            server.execute(this::writeMessages, "writer-" + clientSocket.getPort());
+            clientSocket.setKeepAlive(true); // Lets the system notice dead peers that never send heartbeats
+            idleWatch = server.watchIdle(this);
+            InboundMessage message = new InboundMessage(); // Reused for every message
 
-            // Read the client's name
-            if (input.hasNextLine()) {
-                clientName = input.nextLine();
-                System.out.println(clientName + " connected");
+            // Read the client's name and register it with the server
+            if (input.read(message)) {
+                clientName = message.getLine();
+                if (clientName != null && input.readUpgrade(message)) {
+                    server.handleMessage(this, message); // Settle the format before the history is sent
+                }
+                if (clientName == null || !server.registerClient(this)) {
+                    return; // No name was sent or the name is already taken
+                }
+                idleWatch.named();
             }
 
             // Process incoming messages from the client
-            while (input.hasNextLine()) {
-                String message = input.nextLine();
+            while (input.read(message)) {
+                idleWatch.touch();
+                if (message.getType() == Protocol.HEARTBEAT) {
+                    idleWatch.heartbeat();
+                }
 
                 // Handle exit request
-                if (message.equals("EXIT")) {
-                    server.removeClient(this); // Remove the client from the server
-                    clientSocket.close(); // Close the client socket
-                    System.out.println(clientName + " disconnected");
+                if (message.getType() == Protocol.EXIT) {
                     break;
                 }
 
                 // Handle other messages
                 else {
-                    // Split the message into parts (receiver name and message content)
-                    String[] parts = message.split("#");
-                    receiverName = parts[0];
-                    String privateMessage = parts[1];
-
-                    // Check if the client exists
-                    if (receiverName.equals("Client Exist")) {
-                        server.clientExist(this, privateMessage);
-                    }
+                    server.handleMessage(this, message);
+                }
+            }
+        } catch (IOException e) {
+            if (!clientSocket.isClosed()) {
+                e.printStackTrace(); // Handle IO exceptions; a closed socket was disconnected on purpose
+            }
+        } finally {
+            if (idleWatch != null) {
+                idleWatch.stop();
+            }
+            server.removeClient(this); // Make sure a dropped client does not keep its name
+            outbound.close(); // Let the writer send what is left and close the socket
+        }
+    }
 
-                    // Handle global chat messages
-                    else if (receiverName.equals("GLOBAL CHAT")) {
-                        server.sendGlobalMessage(message);
-                    }
+    /**
+     * Writes queued messages to the client until the queue is closed and drained
+     * or the socket fails, then closes the client socket.
+     * Messages arriving within the flush window, up to the flush byte budget, share one flush;
+     * an urgent message flushes the batch right away.
+     * The writer starts in the text format and switches once it has written an accepted upgrade,
+     * sending compressed frames from then on if the client asked for them.
+     */
+    private void writeMessages() {
+        boolean binary = false;
+        boolean compressed = false;
+        long window = TimeUnit.MICROSECONDS.toNanos(server.getFlushWindowMicros());
+        int budget = server.getFlushBytes();
+        try {
+            OutboundMessage message;
+            while ((message = outbound.take()) != null) {
+                long deadline = System.nanoTime() + window;
+                boolean urgent = false;
+                int bytes = 0;
+                int batched = 0;
 
-                    // Handle private messages
-                    else {
-                        server.sendPrivateMessage(clientName, receiverName, privateMessage);
+                // Collect messages until the budget is used up, the window closes or an urgent message arrives
+                while (message != null) {
+                    bytes += message.writeTo(output, binary, compressed); // Write the shared bytes without encoding them again
+                    binary |= message.switchesToBinary();
+                    compressed |= message.enablesCompression();
+                    batched++;
+                    urgent |= message.isUrgent();
+                    if (bytes >= budget) {
+                        break;
                     }
+                    long remaining = deadline - System.nanoTime();
+                    message = (urgent || remaining <= 0) ? outbound.poll() : outbound.poll(remaining, TimeUnit.NANOSECONDS);
                 }
+
+                output.flush();
+                server.recordFlush(batched, bytes);
             }
         } catch (IOException e) {
-            e.printStackTrace(); // Handle IO exceptions
+            // The client is gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Stop writing
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Closes the client socket. The reading loop then ends and removes the client.
+     */
+    @Override
+    public void disconnect() {
+        outbound.close();
+        try {
+            clientSocket.close(); // Close the client socket
+        } catch (IOException e) {
+            e.printStackTrace(); // Handle any IO exceptions during closing
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ClientRegistry class keeps track of connected clients by name.
+ * Lookups are constant time, names are unique, and registration and removal are atomic,
+ * so it can be used concurrently by every handler and reactor thread.
+ *
+ * The names are split over a fixed number of shards by a hash of the name. Each shard has its
+ * own map and member snapshot, so a client joining or leaving only invalidates the snapshot of
+ * its own shard, and a broadcast can be split into one part per shard.
+ */
+public class ClientRegistry {
+    private Shard[] shards; // Slices of the registry, selected by the hash of the name
+
+    /**
+     * Constructor for a registry with a single shard.
+     */
+    public ClientRegistry() {
+        this(1);
+    }
+
+    /**
+     * Constructor for the ClientRegistry.
+     *
+     * @param shardCount The number of shards, at least one.
+     */
+    public ClientRegistry(int shardCount) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Returns the shard a name belongs to.
+     *
+     * @param name The name of a client.
+     * @return The shard index, between 0 and the shard count.
+     */
+    public int shardOf(String name) {
+        long mixed = (name.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL; // Spread so the shard does not follow the map's own bucket bits
+        return (int) ((mixed * shards.length) >>> 32);
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Registers a client under its name.
+     *
+     * @param connection The connection of a client whose name has been received.
+     * @return True if the client was registered, false if the name is already taken.
+     */
+    public boolean register(Connection connection) {
+        Shard shard = shards[shardOf(connection.getClientName())];
+        if (shard.clients.putIfAbsent(connection.getClientName(), connection) != null) {
+            return false;
+        }
+        shard.version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a client. Does nothing if the client was never registered
+     * or if its name now belongs to another connection.
+     *
+     * @param connection The connection to be removed.
+     * @return True if the client was removed.
+     */
+    public boolean unregister(Connection connection) {
+        String name = connection.getClientName();
+        if (name == null) {
+            return false;
+        }
+        Shard shard = shards[shardOf(name)];
+        if (shard.clients.remove(name, connection)) {
+            shard.version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the client registered under a name.
+     *
+     * @param name The name of the client.
+     * @return The client's connection, or null if no client has that name.
+     */
+    public Connection get(String name) {
+        return shards[shardOf(name)].clients.get(name);
+    }
+
+    /**
+     * Returns the number of registered clients.
+     *
+     * @return The number of registered clients.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.clients.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns an immutable snapshot of the clients of one shard, suitable for iterating
+     * without holding any lock. The array is rebuilt only after the shard's membership changed,
+     * so back-to-back broadcasts share the same snapshot.
+     *
+     * @param shard The shard index.
+     * @return The registered clients of the shard. The array must not be modified.
+     */
+    public Connection[] snapshot(int shard) {
+        return shards[shard].snapshot();
+    }
+
+    /**
+     * Returns a snapshot of all registered clients. The shard snapshots are copied
+     * into a new array on every call, so broadcasts should use the per-shard snapshots.
+     *
+     * @return The registered clients. The array must not be modified.
+     */
+    public Connection[] snapshot() {
+        if (shards.length == 1) {
+            return shards[0].snapshot();
+        }
+        Connection[][] parts = new Connection[shards.length][];
+        int total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = shards[i].snapshot();
+            total += parts[i].length;
+        }
+        Connection[] all = new Connection[total];
+        int offset = 0;
+        for (Connection[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    /**
+     * A slice of the registry holding the clients whose names hash to it.
+     */
+    private static class Shard {
+        private ConcurrentHashMap<String, Connection> clients = new ConcurrentHashMap<>(); // Connected clients by name
+        private AtomicLong version = new AtomicLong(); // Incremented on every membership change
+        private volatile Snapshot snapshot = new Snapshot(0, new Connection[0]); // Last published member array
+
+        /**
+         * Returns the member array, rebuilding it if the membership changed since it was built.
+         *
+         * @return The registered clients of this shard.
+         */
+        Connection[] snapshot() {
+            Snapshot current = snapshot;
+            long latest = version.get();
+            if (current.version != latest) {
+                current = new Snapshot(latest, clients.values().toArray(new Connection[0]));
+                snapshot = current;
+            }
+            return current.members;
+        }
+    }
+
+    /**
+     * An array of members together with the shard version it was built from.
+     */
+    private static class Snapshot {
+        private final long version; // Shard version the members were read at
+        private final Connection[] members; // Registered clients at that version
+
+        Snapshot(long version, Connection[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Cluster class connects this server to other server nodes, so clients on different
+ * nodes can find and message each other.
+ *
+ * Every node keeps a link to every other node and tells them which clients register and leave,
+ * so each node holds a presence directory mapping the clients of the other nodes to their node.
+ * Existence checks and name uniqueness use it; private messages to a client on another node are
+ * forwarded over the link to that node, and a global message is relayed once to each node,
+ * which fans it out to its own clients.
+ *
+ * The cluster port is bound to one address, the loopback address unless configured otherwise,
+ * and a link is only used once both nodes proved they know the cluster's shared secret: each
+ * hello carries a random challenge, which the other node answers with an HMAC of the challenge
+ * and its own id under the secret. The secret itself is never sent.
+ *
+ * Every node dials the nodes listed as its peers, so it is enough for one node of a pair to list
+ * the other. Both sides of a link exchange node ids. A link is kept whoever dialed it; when both
+ * nodes dialed each other, both keep the link dialed by the node with the smaller id and drop
+ * the other, so each pair of nodes ends up with exactly one link. A dialer whose link was dropped
+ * waits for the kept link to go away before dialing again.
+ * Names registered on two nodes at the same moment are not detected.
+ */
+public class Cluster {
+    static final byte HELLO = 1; // Node id exchange: node id, challenge
+    static final byte JOIN = 2; // Clients registered on the sending node: names
+    static final byte LEAVE = 3; // Clients gone from the sending node: names
+    static final byte GLOBAL = 4; // Global message to fan out locally: text
+    static final byte PRIVATE = 5; // Private message for a local client: sender name, receiver name, text
+    static final byte PROOF = 6; // Answer to the other node's challenge: HMAC of the challenge and the node id
+    static final int MAX_FRAME_SIZE = 4 * Protocol.MAX_MESSAGE_SIZE; // Largest frame accepted from a node
+
+    private static final int PRESENCE_BATCH = 1000; // Names per join frame when a link comes up
+    private static final long REDIAL_MILLIS = 1000; // Wait before dialing a peer again
+
+    private Server server; // Server of this node
+    private String nodeId; // Id of this node, unique in the cluster
+    private String address; // Address the cluster port is bound to
+    private int port; // Port accepting links from other nodes
+    private byte[] secret; // Shared secret every node must prove it knows
+    private List<InetSocketAddress> peers; // Nodes this node dials
+    private ConcurrentHashMap<String, NodeLink> links = new ConcurrentHashMap<>(); // Links by node id
+    private ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>(); // Node id of every remote client by name
+    private final Object presenceLock = new Object(); // Orders presence frames so a join never overtakes a later leave
+
+    /**
+     * Constructor for the Cluster.
+     *
+     * @param server The server of this node.
+     * @param nodeId  The id of this node, unique in the cluster.
+     * @param address The address to bind the cluster port to.
+     * @param port    The port accepting links from other nodes.
+     * @param secret  The shared secret of the cluster.
+     * @param peers   The nodes to dial.
+     */
+    public Cluster(Server server, String nodeId, String address, int port, byte[] secret, List<InetSocketAddress> peers) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.address = address;
+        this.port = port;
+        this.secret = secret;
+        this.peers = peers;
+    }
+
+    /**
+     * Parses a peer list.
+     *
+     * @param peers Comma-separated "host:port" entries, or null.
+     * @return The peer addresses.
+     */
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                peer = peer.trim();
+                if (!peer.isEmpty()) {
+                    int colon = peer.lastIndexOf(':');
+                    addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Starts accepting links from other nodes and dialing the peers.
+     *
+     * @throws IOException If the cluster port cannot be bound.
+     */
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket(port, 50, InetAddress.getByName(address));
+        new Thread(() -> accept(listener), "cluster-accept").start();
+        for (InetSocketAddress peer : peers) {
+            Thread dialer = new Thread(() -> dial(peer), "cluster-dial-" + peer);
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+        System.out.println("Cluster node " + nodeId + " listening on " + address + ":" + port);
+    }
+
+    /**
+     * Returns the node a remote client is connected to.
+     *
+     * @param name The name of the client.
+     * @return The node id, or null if no other node has a client with that name.
+     */
+    public String nodeOf(String name) {
+        return directory.get(name);
+    }
+
+    /**
+     * Returns the number of clients connected to other nodes.
+     *
+     * @return The number of remote clients.
+     */
+    public int remoteClientCount() {
+        return directory.size();
+    }
+
+    /**
+     * Returns the names of the clients connected to other nodes.
+     *
+     * @return A copy of the names.
+     */
+    public List<String> remoteNames() {
+        return new ArrayList<>(directory.keySet());
+    }
+
+    /**
+     * Tells every other node that a client registered on this node.
+     *
+     * @param name The name of the client.
+     */
+    public void clientAdded(String name) {
+        synchronized (presenceLock) {
+            sendToAll(Protocol.encodeBinary(JOIN, new String[] {name}));
+        }
+    }
+
+    /**
+     * Tells every other node that a client left this node.
+     *
+     * @param name The name of the client.
+     */
+    public void clientRemoved(String name) {
+        synchronized (presenceLock) {
+            sendToAll(Protocol.encodeBinary(LEAVE, new String[] {name}));
+        }
+    }
+
+    /**
+     * Relays a global message to every other node, encoded once and sent once per node.
+     *
+     * @param globalMessage The text of the message.
+     */
+    public void relayGlobal(String globalMessage) {
+        if (!links.isEmpty()) {
+            sendToAll(Protocol.encodeBinary(GLOBAL, new String[] {globalMessage}));
+        }
+    }
+
+    /**
+     * Forwards a private message to the node of its receiver.
+     *
+     * @param node         The node id of the receiver.
+     * @param senderName   The name of the sender.
+     * @param receiverName The name of the receiver.
+     * @param message      The text of the message.
+     * @return False if there is no link to that node.
+     */
+    public boolean forwardPrivate(String node, String senderName, String receiverName, String message) {
+        NodeLink link = links.get(node);
+        if (link == null) {
+            return false;
+        }
+        link.send(Protocol.encodeBinary(PRIVATE, new String[] {senderName, receiverName, message}));
+        return true;
+    }
+
+    /**
+     * Processes a frame received from another node.
+     *
+     * @param link   The link the frame arrived on.
+     * @param type   The frame type.
+     * @param fields The fields of the frame.
+     */
+    void handle(NodeLink link, byte type, String[] fields) {
+        switch (type) {
+            case JOIN:
+                for (String name : fields) {
+                    if (directory.put(name, link.getPeerId()) == null) {
+                        server.remotePresenceChanged(name, true);
+                    }
+                }
+                break;
+
+            case LEAVE:
+                for (String name : fields) {
+                    if (directory.remove(name, link.getPeerId())) {
+                        server.remotePresenceChanged(name, false);
+                    }
+                }
+                break;
+
+            case GLOBAL:
+                if (fields.length == 1) {
+                    server.deliverGlobalMessage(fields[0]);
+                }
+                break;
+
+            case PRIVATE:
+                if (fields.length == 3) {
+                    server.deliverPrivateMessage(fields[0], fields[1], fields[2]);
+                }
+                break;
+
+            default:
+                break; // Ignore frames from newer nodes
+        }
+    }
+
+    /**
+     * Forgets a closed link and every client of its node.
+     *
+     * @param link The closed link.
+     */
+    void linkClosed(NodeLink link) {
+        String peerId = link.getPeerId();
+        if (peerId != null && links.remove(peerId, link)) {
+            for (Map.Entry<String, String> entry : directory.entrySet()) {
+                if (peerId.equals(entry.getValue()) && directory.remove(entry.getKey(), peerId)) {
+                    server.remotePresenceChanged(entry.getKey(), false);
+                }
+            }
+            System.out.println("Lost link to node " + peerId);
+        }
+    }
+
+    /**
+     * Accepts links from other nodes.
+     *
+     * @param listener The server socket of the cluster port.
+     */
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                new Thread(() -> {
+                    try {
+                        NodeLink link = new NodeLink(this, socket, false);
+                        String peerId = link.handshake(nodeId, secret);
+                        if (peerId.equals(nodeId)) {
+                            link.close(); // This node's own dialer reports the clash
+                        } else {
+                            addLink(link);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Refused link from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                        closeQuietly(socket);
+                    }
+                }, "cluster-handshake").start();
+            } catch (IOException e) {
+                e.printStackTrace(); // Keep accepting
+            }
+        }
+    }
+
+    /**
+     * Keeps a link to a peer open, dialing it again whenever the link is lost.
+     * While the pair is linked through a link the peer dialed, waits instead of dialing.
+     *
+     * @param peer The address of the peer's cluster port.
+     */
+    private void dial(InetSocketAddress peer) {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(peer, (int) REDIAL_MILLIS);
+                NodeLink link = new NodeLink(this, socket, true);
+                String peerId = link.handshake(nodeId, secret);
+                if (peerId.equals(nodeId)) {
+                    System.out.println("Peer " + peer + " has this node's id " + nodeId + "; not linking");
+                    link.close();
+                    return;
+                }
+                if (addLink(link)) {
+                    link.awaitClose();
+                } else {
+                    while (links.containsKey(peerId)) {
+                        Thread.sleep(REDIAL_MILLIS); // The pair is linked through the peer's link
+                    }
+                }
+            } catch (IOException e) {
+                closeQuietly(socket); // The peer is not up yet
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts using a link and sends the other node the names of every local client, unless the
+     * nodes are already linked through a link that wins over it.
+     *
+     * @param link The link, after its handshake.
+     * @return True if the link is used, false if it was closed as a duplicate.
+     */
+    private boolean addLink(NodeLink link) {
+        synchronized (presenceLock) {
+            NodeLink old = links.get(link.getPeerId());
+            if (old != null && !replaces(link, old)) {
+                link.close();
+                return false;
+            }
+            links.put(link.getPeerId(), link);
+            if (old != null) {
+                old.close(); // Replaced by the new link
+            }
+            link.start();
+            Connection[] local = server.localClients();
+            for (int from = 0; from < local.length; from += PRESENCE_BATCH) {
+                String[] names = new String[Math.min(PRESENCE_BATCH, local.length - from)];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = local[from + i].getClientName();
+                }
+                link.send(Protocol.encodeBinary(JOIN, names));
+            }
+        }
+        System.out.println("Linked to node " + link.getPeerId());
+        return true;
+    }
+
+    /**
+     * Decides which of two links to the same node to keep. Both nodes decide the same way:
+     * a new link from the same side is a reconnect and replaces the old one, and of links from
+     * opposite sides the one dialed by the node with the smaller id wins.
+     *
+     * @param link The new link.
+     * @param old  The link in use.
+     * @return True if the new link should replace the old one.
+     */
+    private boolean replaces(NodeLink link, NodeLink old) {
+        if (link.isDialed() == old.isDialed()) {
+            return true;
+        }
+        boolean localIsSmaller = nodeId.compareTo(link.getPeerId()) < 0;
+        return link.isDialed() == localIsSmaller;
+    }
+
+    /**
+     * Queues a frame on every link.
+     *
+     * @param frame The encoded frame.
+     */
+    private void sendToAll(byte[] frame) {
+        for (NodeLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring errors.
+     *
+     * @param socket The socket.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Compression class deflates and inflates binary frames for clients that negotiated
+ * "binary/1+deflate".
+ *
+ * A compressed frame is a binary frame of type COMPRESSED whose body is the deflated bytes of one
+ * or more complete binary frames. Each message is compressed on its own, once, and the result is
+ * cached by the OutboundMessage, so a broadcast or a history replay is deflated once however many
+ * clients receive it; a per-connection stream would have to deflate it again for every client.
+ * Frames below the threshold, frames that do not shrink, and frames a client would refuse, because
+ * they inflate past MAX_INFLATED_SIZE or still exceed MAX_MESSAGE_SIZE once deflated, are sent as
+ * they are; every frame inside is small enough on its own.
+ * Deflaters and Inflaters hold native memory until they are ended, so they are borrowed from small
+ * shared pools rather than kept per thread: in virtual mode every connection has its own writer
+ * thread, and per-thread instances would pile up, one per connection, and never be ended.
+ * One that finds its pool full when it is returned is ended right away.
+ */
+public final class Compression {
+    public static final int THRESHOLD = Integer.getInteger("talktik.compressThreshold", 256); // Smallest frame worth deflating, 0 turns compression off
+    public static final int LEVEL = Integer.getInteger("talktik.compressLevel", Deflater.DEFAULT_COMPRESSION); // Deflate level, 1 (fastest) to 9 (smallest)
+
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors(); // Idle instances kept of each kind
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE); // Idle deflaters
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE); // Idle inflaters
+
+    private Compression() {
+    }
+
+    /**
+     * Returns whether the server offers compression.
+     *
+     * @return False if the threshold turns compression off.
+     */
+    public static boolean isEnabled() {
+        return THRESHOLD > 0;
+    }
+
+    /**
+     * Compresses encoded binary frames into one compressed frame.
+     *
+     * @param frames One or more complete binary frames.
+     * @return The compressed frame, or the frames themselves if they are below the threshold
+     *         or do not get smaller.
+     */
+    public static byte[] deflate(byte[] frames) {
+        if (frames.length < THRESHOLD) {
+            return frames;
+        }
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL);
+        }
+        try {
+            return deflate(frames, deflater, THRESHOLD);
+        } finally {
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end(); // Enough are idle already
+            }
+        }
+    }
+
+    /**
+     * Compresses encoded binary frames into one compressed frame with a given deflater.
+     *
+     * @param frames    One or more complete binary frames.
+     * @param deflater  The deflater, reset before use.
+     * @param threshold The smallest input that is compressed.
+     * @return The compressed frame, or the frames themselves if they are below the threshold,
+     *         do not get smaller or would be refused by the client.
+     */
+    public static byte[] deflate(byte[] frames, Deflater deflater, int threshold) {
+        if (frames.length < threshold || frames.length > Protocol.MAX_INFLATED_SIZE) {
+            return frames;
+        }
+        deflater.reset();
+        deflater.setInput(frames);
+        deflater.finish();
+        byte[] output = new byte[Math.min(frames.length, Protocol.HEADER_SIZE + Protocol.MAX_MESSAGE_SIZE)]; // Output that would not fit is not worth sending
+        int length = Protocol.HEADER_SIZE;
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        if (!deflater.finished()) {
+            return frames;
+        }
+        ByteBuffer.wrap(output).put(Protocol.VERSION).put(Protocol.COMPRESSED).putInt(length - Protocol.HEADER_SIZE);
+        byte[] frame = new byte[length];
+        System.arraycopy(output, 0, frame, 0, length);
+        return frame;
+    }
+
+    /**
+     * Inflates the body of a compressed frame.
+     *
+     * @param bytes   The array holding the body.
+     * @param offset  The index of the body.
+     * @param length  The length of the body.
+     * @param maxSize The largest inflated size accepted.
+     * @return The inflated frames.
+     * @throws IOException If the body is not valid deflate data or inflates past maxSize.
+     */
+    public static byte[] inflate(byte[] bytes, int offset, int length, int maxSize) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            return inflate(bytes, offset, length, maxSize, inflater);
+        } finally {
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end(); // Enough are idle already
+            }
+        }
+    }
+
+    /**
+     * Inflates the body of a compressed frame with a given inflater.
+     *
+     * @param bytes    The array holding the body.
+     * @param offset   The index of the body.
+     * @param length   The length of the body.
+     * @param maxSize  The largest inflated size accepted.
+     * @param inflater The inflater, reset before use.
+     * @return The inflated frames.
+     * @throws IOException If the body is not valid deflate data or inflates past maxSize.
+     */
+    private static byte[] inflate(byte[] bytes, int offset, int length, int maxSize, Inflater inflater) throws IOException {
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        byte[] output = new byte[Math.min(maxSize, Math.max(64, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size >= maxSize) {
+                        throw new IOException("Compressed frame inflates past " + maxSize + " bytes");
+                    }
+                    byte[] bigger = new byte[(int) Math.min(maxSize, output.length * 2L)];
+                    System.arraycopy(output, 0, bigger, 0, size);
+                    output = bigger;
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(output, 0, result, 0, size);
+        return result;
+    }
+}
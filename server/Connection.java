@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * The Connection interface is the server's view of a single connected client.
+ * It hides whether the client is serviced by its own thread (ClientHandler)
+ * or by a shared non-blocking event loop (NioConnection).
+ */
+public interface Connection {
+    /**
+     * Returns the name of the client.
+     *
+     * @return The client's name, or null if the username has not been received yet.
+     */
+    String getClientName();
+
+    /**
+     * Sends a message to the client in the wire format the client negotiated.
+     * The same instance may be passed to many connections.
+     *
+     * @param message The message to be sent.
+     */
+    void send(OutboundMessage message);
+
+    /**
+     * Returns the number of messages queued for the client but not yet written.
+     *
+     * @return The outbound queue depth.
+     */
+    int getQueueDepth();
+
+    /**
+     * Returns the number of messages dropped because the client could not keep up.
+     *
+     * @return The drop count.
+     */
+    long getDroppedCount();
+
+    /**
+     * Closes the connection from any thread. The client is then removed from the server.
+     */
+    void disconnect();
+}
@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * The History class keeps the most recent global messages in a fixed-size ring buffer
+ * that is allocated once, so newly registered clients can be shown what they missed.
+ * The replay is a single batched message built at most once per change of the history,
+ * so many clients joining at the same time share the same encoded bytes.
+ */
+public class History {
+    private OutboundMessage[] ring; // The most recent global messages; slot count % length is written next
+    private long count; // Number of messages ever added
+    private OutboundMessage replay; // Cached batch of the current history, or null if it changed
+
+    /**
+     * Constructor for the History.
+     *
+     * @param capacity The number of messages kept.
+     */
+    public History(int capacity) {
+        this.ring = new OutboundMessage[capacity];
+    }
+
+    /**
+     * Adds a global message, overwriting the oldest one if the history is full.
+     *
+     * @param message The message.
+     */
+    public synchronized void add(OutboundMessage message) {
+        ring[(int) (count % ring.length)] = message;
+        count++;
+        replay = null;
+    }
+
+    /**
+     * Returns the history, oldest message first, as one batched message.
+     *
+     * @return The batch, or null if no global message has been sent yet.
+     */
+    public synchronized OutboundMessage replay() {
+        if (replay == null && count > 0) {
+            int size = (int) Math.min(count, ring.length);
+            OutboundMessage[] messages = new OutboundMessage[size];
+            for (int i = 0; i < size; i++) {
+                messages[i] = ring[(int) ((count - size + i) % ring.length)];
+            }
+            replay = OutboundMessage.batch(messages);
+        }
+        return replay;
+    }
+}
@@ -0,0 +1,108 @@
+package server;
+
+/**
+ * The IdleWatch class disconnects a client that has gone quiet for too long.
+ *
+ * Connections record activity by writing a timestamp from the wheel's coarse clock, which is
+ * all the hot path pays. The watch sits on the timer wheel with the earliest time the client
+ * could be idle; when that comes, it either moves the deadline to the last activity plus the
+ * timeout or disconnects the client, so a busy client is looked at once per timeout, not per message.
+ *
+ * A client must send its name within the name timeout. After that, clients that send heartbeats
+ * must send something within the idle timeout; older clients never send heartbeats, so they get
+ * the separate legacy timeout, which is off by default and leaves them to TCP keepalive.
+ */
+public class IdleWatch implements TimerWheel.Task {
+    private static final long RECHECK_MILLIS = 10_000; // Wait before looking again at a client without a timeout
+
+    private Connection connection; // Connection being watched
+    private TimerWheel wheel; // Wheel providing the clock and running the deadline
+    private final TimerWheel.Timeout timeout; // Place of the watch on the wheel
+    private Metrics metrics; // Metrics counting reaped clients
+    private long nameTimeout; // Time allowed for sending the name
+    private long idleTimeout; // Time allowed between messages of a client that sends heartbeats
+    private long legacyIdleTimeout; // Time allowed between messages of other clients, 0 for no limit
+    private volatile long lastActivity; // When the client last sent anything
+    private volatile boolean named; // Whether the client has registered its name
+    private volatile boolean heartbeating; // Whether the client has sent a heartbeat
+    private volatile boolean stopped; // Whether the connection is closed
+
+    /**
+     * Constructor for the IdleWatch. Puts the watch on the wheel right away.
+     *
+     * @param connection        The connection to watch.
+     * @param wheel             The timer wheel.
+     * @param metrics           The metrics counting reaped clients.
+     * @param nameTimeout       The time allowed for sending the name, in milliseconds.
+     * @param idleTimeout       The time allowed between messages of a client that sends heartbeats, in milliseconds.
+     * @param legacyIdleTimeout The time allowed between messages of other clients, in milliseconds, 0 for no limit.
+     */
+    public IdleWatch(Connection connection, TimerWheel wheel, Metrics metrics, long nameTimeout, long idleTimeout, long legacyIdleTimeout) {
+        this.connection = connection;
+        this.wheel = wheel;
+        this.metrics = metrics;
+        this.nameTimeout = nameTimeout;
+        this.idleTimeout = idleTimeout;
+        this.legacyIdleTimeout = legacyIdleTimeout;
+        this.lastActivity = wheel.now();
+        this.timeout = wheel.schedule(this, lastActivity + nameTimeout);
+    }
+
+    /**
+     * Records that the client sent something.
+     */
+    public void touch() {
+        long now = wheel.now();
+        if (lastActivity != now) {
+            lastActivity = now; // Skips the volatile write for every message but the first of a tick
+        }
+    }
+
+    /**
+     * Records that the client registered its name.
+     */
+    public void named() {
+        named = true;
+    }
+
+    /**
+     * Records that the client sent a heartbeat, so it is held to the idle timeout.
+     */
+    public void heartbeat() {
+        heartbeating = true;
+    }
+
+    /**
+     * Takes the watch off the wheel at the next tick, so it no longer keeps the connection reachable.
+     */
+    public void stop() {
+        stopped = true;
+        wheel.cancel(timeout);
+    }
+
+    /**
+     * Disconnects the client if it has been quiet for longer than its timeout.
+     *
+     * @param now The current time in milliseconds.
+     * @return The next time to look, or 0 once the connection is closed.
+     */
+    @Override
+    public long expired(long now) {
+        if (stopped) {
+            return 0;
+        }
+        long timeout = !named ? nameTimeout : heartbeating ? idleTimeout : legacyIdleTimeout;
+        if (timeout <= 0) {
+            return now + RECHECK_MILLIS; // The client may still start sending heartbeats
+        }
+        long deadline = lastActivity + timeout;
+        if (deadline > now) {
+            return deadline;
+        }
+        stopped = true;
+        metrics.clientReaped();
+        System.out.println((named ? connection.getClientName() : "A client") + " timed out");
+        connection.disconnect();
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The InboundMessage class holds one decoded message received from a client.
+ * Each connection reuses a single instance for every message it reads.
+ * The raw line is kept as a view into the read buffer and is only turned into a string on request.
+ */
+public class InboundMessage {
+    private byte type; // Message type, one of the Protocol constants
+    private String target; // Receiver name, looked up name or room name, if the type has one
+    private String body; // Message text, format name or presence version, if the type has one
+    private byte[] lineBytes; // Array holding the raw line of a text message, or null for binary frames
+    private int lineOffset; // Index of the raw line in lineBytes
+    private int lineLength; // Length of the raw line
+    private byte[] scratch = new byte[0]; // Reusable array for unescaping message content
+
+    /**
+     * Resets the holder before a new message is decoded into it.
+     *
+     * @param bytes  The array holding the raw text line, or null for binary frames.
+     * @param offset The index of the line.
+     * @param length The length of the line.
+     */
+    void clear(byte[] bytes, int offset, int length) {
+        this.type = Protocol.UNKNOWN;
+        this.target = null;
+        this.body = null;
+        this.lineBytes = bytes;
+        this.lineOffset = offset;
+        this.lineLength = length;
+    }
+
+    /**
+     * Returns a scratch array of at least the given size, reused between messages.
+     *
+     * @param size The minimum size.
+     * @return The scratch array.
+     */
+    byte[] scratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    /**
+     * Sets the decoded contents.
+     *
+     * @param type   The message type.
+     * @param target The receiver or looked up name.
+     * @param body   The message text, format name or presence version.
+     */
+    void set(byte type, String target, String body) {
+        this.type = type;
+        this.target = target;
+        this.body = body;
+    }
+
+    /**
+     * Returns the message type.
+     *
+     * @return One of the Protocol constants.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns the receiver of a private message, the name of an existence check or the room of a room message.
+     *
+     * @return The target name, or null.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the text of a chat message, the format name of an upgrade request or the version of a presence request.
+     *
+     * @return The body, or null.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Returns the raw line of a message received in the text format.
+     * The username handshake is read this way. Only valid until the next message is read.
+     *
+     * @return The line, or null for binary frames.
+     */
+    public String getLine() {
+        return lineBytes == null ? null : new String(lineBytes, lineOffset, lineLength, StandardCharsets.UTF_8);
+    }
+}
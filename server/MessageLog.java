@@ -0,0 +1,378 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MessageLog class appends every routed message to a segmented log on local disk.
+ *
+ * Routing threads only hand the already encoded OutboundMessage to a bounded queue, so live
+ * delivery never waits on the disk. A single background thread copies the records into the
+ * current memory-mapped segment and forces it to disk at most once per sync interval (group
+ * commit): one fsync covers every record appended since the previous one. A record that does
+ * not fit rolls over to a new segment, and old segments are deleted once the log grows past
+ * its size limit or they are older than its age limit.
+ *
+ * A segment is a preallocated file named after the sequence number of its first record.
+ * Each record is an int length, the time in milliseconds, the receiver or room name (an int
+ * length and UTF-8 bytes, empty for global messages) and the message in the binary wire format.
+ * The mapped file is zero-filled, so a zero length marks the end of the written records.
+ *
+ * The log is best effort: when the writer falls a whole queue behind the routing threads, new
+ * records are dropped rather than making delivery wait on the disk. Each dropped record is
+ * counted in the metrics (talktik_log_records_dropped_total) and every burst of drops is
+ * reported once on standard output, so a gap in the log is never silent.
+ */
+public class MessageLog {
+    private static final String SUFFIX = ".log"; // File name suffix of segments
+    private static final int QUEUE_CAPACITY = 64 * 1024; // Records waiting for the writer before new ones are dropped
+    private static final long RETENTION_CHECK_MILLIS = 60_000; // How often the age limit is checked between rolls
+
+    private Path directory; // Directory holding the segments
+    private int segmentBytes; // Size of one segment file
+    private long retentionBytes; // Total size of segments kept
+    private long retentionMillis; // Age after which closed segments are deleted
+    private long syncMillis; // Longest time an appended record waits to be forced to disk
+    private OutboundQueue<Record> pending = new OutboundQueue<>(QUEUE_CAPACITY, OverflowPolicy.DISCONNECT); // Records waiting for the writer, refusing new ones when full
+    private Metrics metrics; // Counts the records dropped because the writer fell behind
+    private volatile boolean overflowing; // Set when a record was dropped, cleared once the writer has caught up
+    private ArrayDeque<Path> closedSegments = new ArrayDeque<>(); // Full segments, oldest first, touched only by the writer
+    private Path segmentPath; // File of the current segment
+    private MappedByteBuffer segment; // Mapping of the current segment, positioned after its last record
+    private long nextSequence; // Sequence number of the next record
+    private boolean dirty; // Whether records were appended since the last force
+    private volatile boolean closing; // Set when the log is closed
+    private Thread writer; // Background thread writing and forcing records
+
+    /**
+     * The Record class is one message waiting to be appended.
+     */
+    private static class Record {
+        private long time; // When the message was routed, in milliseconds
+        private String receiverName; // Receiver of a private message or room of a room message, or null for global messages
+        private OutboundMessage message; // The routed message
+
+        /**
+         * Constructor for the Record.
+         *
+         * @param time         When the message was routed.
+         * @param receiverName The receiver, or null.
+         * @param message      The message.
+         */
+        Record(long time, String receiverName, OutboundMessage message) {
+            this.time = time;
+            this.receiverName = receiverName;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The Visitor interface receives the records of the log during a replay.
+     */
+    public interface Visitor {
+        /**
+         * Receives one record.
+         *
+         * @param time         When the message was routed, in milliseconds.
+         * @param receiverName The receiver of a private message or the room of a room message, or null for a global message.
+         * @param type         The message type, one of the Protocol constants.
+         * @param fields       The fields of the message.
+         */
+        void visit(long time, String receiverName, byte type, String[] fields);
+    }
+
+    /**
+     * Opens the log, continuing after the last record of an existing log, and starts the writer.
+     *
+     * @param directory       The directory holding the segments; created if missing.
+     * @param segmentBytes    The size of one segment file.
+     * @param retentionBytes  The total size of segments to keep.
+     * @param retentionMillis The age after which closed segments are deleted.
+     * @param syncMillis      The longest time an appended record waits to be forced to disk.
+     * @param metrics         The metrics counting dropped records.
+     * @throws IOException If the directory or a segment cannot be opened.
+     */
+    public MessageLog(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, long syncMillis,
+                      Metrics metrics) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.syncMillis = syncMillis;
+        this.metrics = metrics;
+        Files.createDirectories(directory);
+
+        List<Path> segments = listSegments(directory);
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            closedSegments.addAll(segments.subList(0, segments.size() - 1));
+            Path last = segments.get(segments.size() - 1);
+            segmentPath = last;
+            segment = map(last);
+            nextSequence = baseSequence(last) + skipRecords(segment);
+        }
+
+        writer = new Thread(this::writeRecords, "message-log");
+        writer.setDaemon(true); // Closed by the shutdown hook, never keeps the server alive
+        writer.start();
+    }
+
+    /**
+     * Queues a routed message for the log. Never blocks; if the writer is a whole queue behind,
+     * the record is dropped and counted rather than delaying delivery.
+     *
+     * @param receiverName The receiver of a private message or the room of a room message, or null for a global message.
+     * @param message      The routed message.
+     */
+    public void append(String receiverName, OutboundMessage message) {
+        if (!pending.offer(new Record(System.currentTimeMillis(), receiverName, message))) {
+            metrics.logRecordDropped();
+            if (!overflowing) {
+                overflowing = true; // Reported once per burst, not once per record
+                System.out.println("Message log writer fell behind; dropping records until it catches up");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the writer could not keep up.
+     *
+     * @return The drop count.
+     */
+    public long getDroppedCount() {
+        return pending.getDroppedCount();
+    }
+
+    /**
+     * Writes the queued records, then forces them to disk and stops the writer.
+     */
+    public void close() {
+        closing = true;
+        pending.close();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads every record of the log, oldest first, including records of other runs. The server
+     * uses it at startup to refill the history. Must not be called while the log is being written.
+     *
+     * @param directory The directory holding the segments.
+     * @param visitor   The visitor receiving the records.
+     * @throws IOException If a segment cannot be read or holds a malformed record.
+     */
+    public static void replay(Path directory, Visitor visitor) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        for (Path path : listSegments(directory)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            int length;
+            while (buffer.remaining() >= 4 && (length = buffer.getInt()) > 0) {
+                if (length > buffer.remaining()) {
+                    throw new IOException("Truncated record in " + path);
+                }
+                int end = buffer.position() + length;
+                long time = buffer.getLong();
+                int nameLength = buffer.getInt();
+                String receiverName = nameLength == 0 ? null
+                        : new String(buffer.array(), buffer.position(), nameLength, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + nameLength);
+                byte type = buffer.get(buffer.position() + 1);
+                int frameLength = buffer.getInt(buffer.position() + 2);
+                String[] fields = Protocol.decodeFields(buffer.array(), buffer.position() + Protocol.HEADER_SIZE, frameLength);
+                visitor.visit(time, receiverName, type, fields);
+                buffer.position(end);
+            }
+        }
+    }
+
+    /**
+     * Runs on the writer thread: appends queued records and forces them to disk once per sync
+     * interval, until the log is closed and every queued record has been written.
+     */
+    private void writeRecords() {
+        long nextSync = 0;
+        long nextRetentionCheck = System.currentTimeMillis() + RETENTION_CHECK_MILLIS;
+        try {
+            while (true) {
+                long wait = dirty ? Math.max(0, nextSync - System.currentTimeMillis()) : syncMillis;
+                Record record = pending.poll(wait, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    if (!dirty) {
+                        nextSync = System.currentTimeMillis() + syncMillis; // The first unsynced record starts the interval
+                    }
+                    write(record);
+                    while ((record = pending.poll()) != null) {
+                        write(record);
+                    }
+                    overflowing = false; // The queue was drained, so the next drop starts a new burst
+                }
+
+                long now = System.currentTimeMillis();
+                if (dirty && (now >= nextSync || closing)) {
+                    segment.force(); // Group commit: one fsync for everything appended since the last one
+                    dirty = false;
+                }
+                if (now >= nextRetentionCheck) {
+                    applyRetention();
+                    nextRetentionCheck = now + RETENTION_CHECK_MILLIS;
+                }
+                if (closing && record == null && pending.size() == 0) {
+                    if (dirty) {
+                        segment.force();
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // Stop logging, but keep serving clients
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends one record to the current segment, rolling to a new segment if it does not fit.
+     *
+     * @param record The record to append.
+     * @throws IOException If a new segment cannot be created.
+     */
+    private void write(Record record) throws IOException {
+        byte[] frame = record.message.bytes(true); // Shares the encoding with binary clients
+        byte[] receiver = record.receiverName == null ? new byte[0] : record.receiverName.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 4 + receiver.length + frame.length;
+        if (4 + length > segmentBytes) {
+            return; // Larger than a whole segment; the protocol limit keeps this from happening with sane settings
+        }
+        if (4 + length > segment.remaining()) {
+            roll();
+        }
+        segment.putInt(length).putLong(record.time).putInt(receiver.length).put(receiver).put(frame);
+        nextSequence++;
+        dirty = true;
+    }
+
+    /**
+     * Closes the current segment and starts a new one, then applies retention.
+     *
+     * @throws IOException If the new segment cannot be created.
+     */
+    private void roll() throws IOException {
+        segment.force();
+        dirty = false;
+        Files.setLastModifiedTime(segmentPath, FileTime.fromMillis(System.currentTimeMillis())); // Age of the last record
+        closedSegments.add(segmentPath);
+        openSegment(nextSequence);
+        applyRetention();
+    }
+
+    /**
+     * Creates and maps a new segment.
+     *
+     * @param baseSequence The sequence number of the segment's first record.
+     * @throws IOException If the segment cannot be created.
+     */
+    private void openSegment(long baseSequence) throws IOException {
+        segmentPath = directory.resolve(String.format("%020d%s", baseSequence, SUFFIX));
+        segment = map(segmentPath);
+    }
+
+    /**
+     * Maps a segment file, creating it at the full segment size if needed.
+     *
+     * @param path The segment file.
+     * @return The mapping, positioned at the start of the file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size())); // Stays valid after closing
+        }
+    }
+
+    /**
+     * Deletes the oldest closed segments while the log is larger than its size limit,
+     * and every closed segment older than the age limit.
+     */
+    private void applyRetention() {
+        long total = (long) segmentBytes * (closedSegments.size() + 1);
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        while (!closedSegments.isEmpty()) {
+            Path path = closedSegments.peekFirst();
+            try {
+                if (total <= retentionBytes && Files.getLastModifiedTime(path).toMillis() >= oldest) {
+                    return;
+                }
+                total -= Files.size(path);
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                e.printStackTrace(); // Try again on the next check
+                return;
+            }
+            closedSegments.pollFirst();
+        }
+    }
+
+    /**
+     * Moves a mapped segment's position past its last record.
+     *
+     * @param buffer The mapped segment.
+     * @return The number of records in the segment.
+     */
+    private static long skipRecords(ByteBuffer buffer) {
+        long records = 0;
+        int length;
+        while (buffer.remaining() >= 4 && (length = buffer.getInt(buffer.position())) > 0 && length <= buffer.remaining() - 4) {
+            buffer.position(buffer.position() + 4 + length);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Returns the segment files of a log, oldest first.
+     *
+     * @param directory The directory holding the segments.
+     * @return The segment files.
+     * @throws IOException If the directory cannot be listed.
+     */
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments); // Names are zero-padded sequence numbers
+        return segments;
+    }
+
+    /**
+     * Returns the sequence number of a segment's first record.
+     *
+     * @param path The segment file.
+     * @return The sequence number.
+     */
+    private static long baseSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
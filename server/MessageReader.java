@@ -0,0 +1,70 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The MessageReader class reads messages in either wire format from a blocking stream.
+ * It decodes straight out of its own buffer, so lines and frames are not copied
+ * before they are parsed.
+ */
+public class MessageReader {
+    private static final int BUFFER_SIZE = 8 * 1024; // Initial size of the read buffer
+
+    private InputStream input; // Stream to read from
+    private Metrics metrics; // Metrics counting the bytes read
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // Received bytes, kept in read mode
+
+    /**
+     * Constructor for the MessageReader.
+     *
+     * @param input   The stream to read from.
+     * @param metrics The metrics counting the bytes read.
+     */
+    public MessageReader(InputStream input, Metrics metrics) {
+        this.input = input;
+        this.metrics = metrics;
+        buffer.flip(); // Start out empty
+    }
+
+    /**
+     * Reads the next message if it is a protocol upgrade request that has already been received.
+     * Never blocks.
+     *
+     * @param message The holder to fill with the decoded message.
+     * @return True if an upgrade request was read; otherwise nothing was consumed.
+     */
+    public boolean readUpgrade(InboundMessage message) {
+        return Protocol.decodeUpgrade(buffer, message);
+    }
+
+    /**
+     * Reads the next message, blocking until it is complete.
+     *
+     * @param message The holder to fill with the decoded message.
+     * @return True if a message was read, false at the end of the stream.
+     * @throws IOException If reading fails or the message is too large.
+     */
+    public boolean read(InboundMessage message) throws IOException {
+        while (!Protocol.decode(buffer, message)) {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // Grow the buffer for long messages; the decoder refuses oversized ones
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (read < 0) {
+                buffer.flip();
+                return false;
+            }
+            metrics.bytesRead(read);
+            buffer.position(buffer.position() + read);
+            buffer.flip();
+        }
+        return true;
+    }
+}
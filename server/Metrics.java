@@ -0,0 +1,246 @@
+package server;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Metrics class collects the server's counters. Every counter is a LongAdder, so
+ * handler, writer and reactor threads can update them on the hot path without contending.
+ * The counters only ever grow; rates are the difference between two readings.
+ * Gauges such as connected clients and queue depths are read from the registry on demand.
+ */
+public class Metrics {
+    private static final int FAN_OUT_BUCKETS = 24; // Power-of-two microsecond buckets, the last one open-ended
+    private static final String[] TYPE_NAMES = {
+            "unknown", "global", "private", "exist", "exist_response", "name_taken", "exit", "upgrade", "upgrade_response",
+            "room_join", "room_leave", "room_message", "presence_subscribe", "presence_update", "heartbeat"
+    };
+
+    private long startTime = System.nanoTime(); // When the server started
+    private LongAdder[] messagesReceived = adders(TYPE_NAMES.length); // Messages received from clients by type
+    private LongAdder bytesIn = new LongAdder(); // Bytes read from client sockets
+    private LongAdder bytesOut = new LongAdder(); // Bytes written to client sockets
+    private LongAdder messagesWritten = new LongAdder(); // Messages written to client sockets
+    private LongAdder flushes = new LongAdder(); // Flushes (socket writes) that carried those messages
+    private LongAdder accepted = new LongAdder(); // Connections accepted since the start
+    private LongAdder connects = new LongAdder(); // Clients registered since the start
+    private LongAdder disconnects = new LongAdder(); // Registered clients removed since the start
+    private LongAdder rejected = new LongAdder(); // Clients refused because their name was taken
+    private LongAdder reaped = new LongAdder(); // Clients disconnected for being idle too long
+    private LongAdder[] fanOutBuckets = adders(FAN_OUT_BUCKETS); // Global message fan-out durations
+    private LongAdder fanOutNanos = new LongAdder(); // Total time spent fanning out global messages
+    private LongAdder fanOutRecipients = new LongAdder(); // Total recipients of global messages
+    private LongAdder logDropped = new LongAdder(); // Records the message log dropped because its writer fell behind
+
+    /**
+     * Creates an array of counters.
+     *
+     * @param size The number of counters.
+     * @return The counters.
+     */
+    private static LongAdder[] adders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Counts a message received from a client.
+     *
+     * @param type The message type, one of the Protocol constants.
+     */
+    void messageReceived(byte type) {
+        messagesReceived[type >= 0 && type < TYPE_NAMES.length ? type : Protocol.UNKNOWN].increment();
+    }
+
+    /**
+     * Counts bytes read from a client socket.
+     *
+     * @param bytes The number of bytes read.
+     */
+    void bytesRead(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Records one flush to a client socket.
+     *
+     * @param messages The number of messages the flush completed.
+     * @param bytes    The number of bytes written.
+     */
+    void recordFlush(int messages, long bytes) {
+        messagesWritten.add(messages);
+        flushes.increment();
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Counts an accepted connection, before it sends its name.
+     */
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Counts a registered client that disconnected or was disconnected.
+     */
+    void clientUnregistered() {
+        disconnects.increment();
+    }
+
+    /**
+     * Counts a client registration attempt.
+     *
+     * @param accepted Whether the client was registered.
+     */
+    void clientRegistered(boolean accepted) {
+        (accepted ? connects : rejected).increment();
+    }
+
+    /**
+     * Counts a client disconnected for being idle too long.
+     */
+    void clientReaped() {
+        reaped.increment();
+    }
+
+    /**
+     * Counts a record the message log dropped because its writer fell behind.
+     */
+    void logRecordDropped() {
+        logDropped.increment();
+    }
+
+    /**
+     * Records how long it took to queue a global message for every client, or in nio mode
+     * for the clients of one reactor, as each reactor fans out to its own shards.
+     *
+     * @param nanos      The duration in nanoseconds.
+     * @param recipients The number of clients the message was queued for.
+     */
+    void recordFanOut(long nanos, int recipients) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros); // Bucket i holds durations below 2^i microseconds
+        fanOutBuckets[Math.min(bucket, FAN_OUT_BUCKETS - 1)].increment();
+        fanOutNanos.add(nanos);
+        fanOutRecipients.add(recipients);
+    }
+
+    /**
+     * Returns the number of messages written to client sockets.
+     *
+     * @return The number of messages written.
+     */
+    public long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    /**
+     * Returns the number of flushes that carried the written messages.
+     *
+     * @return The number of flushes.
+     */
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * Returns how many socket writes batching saved compared with one flush per message.
+     *
+     * @return The number of flushes saved.
+     */
+    public long getFlushesSaved() {
+        return messagesWritten.sum() - flushes.sum();
+    }
+
+    /**
+     * Renders every metric in the Prometheus text format, one "name{labels} value" per line.
+     *
+     * @param clients The registry of connected clients, for the gauges.
+     * @return The rendered metrics.
+     */
+    public String render(ClientRegistry clients) {
+        StringBuilder text = new StringBuilder(4096);
+        line(text, "talktik_uptime_seconds", null, (System.nanoTime() - startTime) / 1e9);
+        line(text, "talktik_clients_connected", null, clients.size());
+        line(text, "talktik_connections_accepted_total", null, accepted.sum());
+        line(text, "talktik_clients_registered_total", null, connects.sum());
+        line(text, "talktik_clients_disconnected_total", null, disconnects.sum());
+        line(text, "talktik_clients_rejected_total", null, rejected.sum());
+        line(text, "talktik_clients_reaped_total", null, reaped.sum());
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            long count = messagesReceived[type].sum();
+            if (count > 0) {
+                line(text, "talktik_messages_received_total", "type=\"" + TYPE_NAMES[type] + "\"", count);
+            }
+        }
+        line(text, "talktik_bytes_in_total", null, bytesIn.sum());
+        line(text, "talktik_bytes_out_total", null, bytesOut.sum());
+        line(text, "talktik_messages_written_total", null, messagesWritten.sum());
+        line(text, "talktik_flushes_total", null, flushes.sum());
+
+        // Cumulative fan-out histogram
+        long cumulative = 0;
+        for (int i = 0; i < FAN_OUT_BUCKETS; i++) {
+            cumulative += fanOutBuckets[i].sum();
+            String bound = i == FAN_OUT_BUCKETS - 1 ? "+Inf" : String.valueOf(1L << i);
+            line(text, "talktik_fanout_micros_bucket", "le=\"" + bound + "\"", cumulative);
+        }
+        line(text, "talktik_fanout_micros_sum", null, fanOutNanos.sum() / 1e3);
+        line(text, "talktik_fanout_micros_count", null, cumulative);
+        line(text, "talktik_fanout_recipients_total", null, fanOutRecipients.sum());
+        line(text, "talktik_log_records_dropped_total", null, logDropped.sum());
+
+        // Queue depth of every connected client
+        long totalDepth = 0;
+        int maxDepth = 0;
+        long dropped = 0;
+        StringBuilder perClient = new StringBuilder();
+        for (Connection client : clients.snapshot()) {
+            int depth = client.getQueueDepth();
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            dropped += client.getDroppedCount();
+            line(perClient, "talktik_client_queue_depth", "client=\"" + escape(client.getClientName()) + "\"", depth);
+        }
+        line(text, "talktik_queue_depth_total", null, totalDepth);
+        line(text, "talktik_queue_depth_max", null, maxDepth);
+        line(text, "talktik_messages_dropped", null, dropped);
+        return text.append(perClient).toString();
+    }
+
+    /**
+     * Appends one metric line.
+     *
+     * @param text   The text to append to.
+     * @param name   The metric name.
+     * @param labels The labels without braces, or null.
+     * @param value  The value.
+     */
+    private static void line(StringBuilder text, String name, String labels, double value) {
+        text.append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ');
+        if (value == (long) value) {
+            text.append((long) value);
+        } else {
+            text.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+        text.append('\n');
+    }
+
+    /**
+     * Escapes a client name for use as a label value.
+     *
+     * @param name The client name.
+     * @return The escaped name.
+     */
+    private static String escape(String name) {
+        return name.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
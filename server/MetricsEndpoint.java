@@ -0,0 +1,45 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The MetricsEndpoint class serves the server's metrics as plain text over HTTP.
+ * It only listens on the loopback interface, so the numbers can be read with
+ * "curl localhost:PORT/metrics" on the server's machine but not from outside.
+ */
+public class MetricsEndpoint {
+    private HttpServer httpServer; // Embedded HTTP server of the JDK
+
+    /**
+     * Starts serving the metrics.
+     *
+     * @param port    The loopback port to listen on.
+     * @param metrics The metrics to serve.
+     * @param clients The registry of connected clients.
+     * @throws IOException If the port cannot be bound.
+     */
+    public MetricsEndpoint(int port, Metrics metrics, ClientRegistry clients) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = metrics.render(clients).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        httpServer.start();
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
@@ -0,0 +1,317 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The NioConnection class manages a single client in the non-blocking server mode.
+ * It decodes messages in either wire format from its own read buffer and
+ * writes queued messages when the channel is writable, always on its reactor thread.
+ * Queued messages share the bytes of their OutboundMessage and go out in gathering writes.
+ * Once the client has registered, the connection moves to the reactor owning its registry shard.
+ * Only the owning reactor reads, writes or closes it; other threads hand their work to the owner.
+ */
+public class NioConnection implements Connection {
+    private static final int READ_BUFFER_SIZE = 8 * 1024; // Initial size of the read buffer
+    private static final int MAX_GATHER = 64; // Maximum number of buffers passed to one gathering write
+
+    private Server server; // Reference to the server
+    private volatile Reactor reactor; // Reactor owning this connection
+    private Reactor moveTo; // Reactor to move to after the current read, touched only by the reactor
+    private SocketChannel channel; // Channel for communication with the client
+    private SelectionKey key; // Registration of the channel with the reactor's selector
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Bytes received but not yet parsed
+    private OutboundQueue<OutboundMessage> outbound; // Messages queued by any thread
+    private ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>(); // Messages being written, touched only by the reactor
+    private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // Reused argument array for gathering writes
+    private InboundMessage inbound = new InboundMessage(); // Reused holder for decoded messages
+    private boolean binary; // Whether output is written in the binary format, touched only by the reactor
+    private boolean compressed; // Whether large output is deflated, touched only by the reactor
+    private AtomicBoolean writeScheduled = new AtomicBoolean(); // Whether a flush is already pending
+    private volatile boolean slowConsumer; // Set when the outbound queue overflowed under the disconnect policy
+    private volatile boolean closed; // Whether the connection has been closed, set only on the owning reactor but read across a move
+    private String clientName; // Name of the client
+    private IdleWatch idleWatch; // Disconnects the client when it goes quiet
+
+    /**
+     * Constructor for the NioConnection.
+     *
+     * @param server  The server instance.
+     * @param reactor The reactor servicing the channel.
+     * @param channel The non-blocking channel for communication with the client.
+     */
+    public NioConnection(Server server, Reactor reactor, SocketChannel channel) {
+        this.server = server;
+        this.reactor = reactor;
+        this.channel = channel;
+        this.outbound = server.createOutboundQueue(false);
+        this.idleWatch = server.watchIdle(this);
+    }
+
+    /**
+     * Sets the selection key of the registered channel.
+     *
+     * @param key The selection key.
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the channel of the connection.
+     *
+     * @return The socket channel.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Completes a move to another reactor. Called on the new reactor's thread.
+     *
+     * @param owner The new reactor.
+     * @param key   The selection key with the new reactor's selector.
+     */
+    void moved(Reactor owner, SelectionKey key) {
+        this.reactor = owner;
+        this.key = key;
+        flush(); // Output queued while moving
+    }
+
+    /**
+     * Returns the name of the client.
+     *
+     * @return The client's name.
+     */
+    @Override
+    public String getClientName() {
+        return clientName;
+    }
+
+    /**
+     * Queues a message for the client. Safe to call from any thread;
+     * the message is encoded and written on the reactor thread.
+     *
+     * @param message The message to be sent.
+     */
+    @Override
+    public void send(OutboundMessage message) {
+        if (!outbound.offer(message)) {
+            slowConsumer = true; // The reactor disconnects the client on its next flush
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            reactor.requestWrite(this);
+        }
+    }
+
+    /**
+     * Returns the number of messages queued for the client and not yet picked up by the reactor.
+     *
+     * @return The outbound queue depth.
+     */
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * Returns the number of messages dropped because the client's queue was full.
+     *
+     * @return The drop count.
+     */
+    @Override
+    public long getDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+
+    /**
+     * Closes the connection on its reactor thread.
+     */
+    @Override
+    public void disconnect() {
+        reactor.execute(this::close);
+    }
+
+    /**
+     * Reads available bytes from the channel and processes every complete message.
+     */
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            close(); // The client closed the connection
+            return;
+        }
+        server.getMetrics().bytesRead(read);
+        idleWatch.touch();
+
+        readBuffer.flip();
+        try {
+            while (Protocol.decode(readBuffer, inbound)) {
+                if (!handleMessage(inbound)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(); // The client sent an oversized or malformed message
+            return;
+        }
+        readBuffer.compact();
+
+        // Grow the buffer for long messages; the decoder refuses oversized ones
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        // Hand the channel to the reactor of the client's shard once the whole read has been processed
+        if (moveTo != null) {
+            Reactor owner = moveTo;
+            moveTo = null;
+            key.cancel();
+            key = null;
+            owner.adopt(this);
+        }
+    }
+
+    /**
+     * Processes a single message received from the client.
+     *
+     * @param message The decoded message.
+     * @return False if the connection was closed, true otherwise.
+     */
+    private boolean handleMessage(InboundMessage message) {
+        // The first line is the client's name
+        if (clientName == null) {
+            clientName = message.getLine();
+            if (clientName != null && Protocol.decodeUpgrade(readBuffer, message)) {
+                server.handleMessage(this, message); // Settle the format before the history is sent
+            }
+            if (clientName == null || !server.registerClient(this)) {
+                flush();
+                close(); // No name was sent or the name is already taken
+                return false;
+            }
+            idleWatch.named();
+            Reactor owner = server.reactorFor(clientName);
+            if (owner != null && owner != reactor) {
+                moveTo = owner;
+            }
+            return true;
+        }
+
+        if (message.getType() == Protocol.HEARTBEAT) {
+            idleWatch.heartbeat();
+        }
+
+        // Handle exit request
+        if (message.getType() == Protocol.EXIT) {
+            close();
+            return false;
+        }
+
+        server.handleMessage(this, message);
+        return true;
+    }
+
+    /**
+     * Writes as much queued output as the channel accepts, using gathering writes.
+     * Registers interest in write readiness if the socket buffer fills up.
+     */
+    void flush() {
+        if (Thread.currentThread() != reactor) {
+            reactor.requestWrite(this); // The connection moved; its new reactor writes
+            return;
+        }
+        if (key == null) {
+            return; // Moving; the new reactor writes once it owns the channel
+        }
+        while (!closed) {
+            if (slowConsumer) {
+                close(); // The client is too slow to keep up
+                return;
+            }
+
+            // Encode queued messages in the current format; an accepted upgrade switches it for those after
+            OutboundMessage message;
+            while ((message = outbound.poll()) != null) {
+                inFlight.add(message.buffer(binary, compressed));
+                binary |= message.switchesToBinary();
+                compressed |= message.enablesCompression();
+            }
+
+            try {
+                while (!inFlight.isEmpty()) {
+                    int count = 0;
+                    long pending = 0;
+                    for (ByteBuffer queued : inFlight) {
+                        gather[count++] = queued;
+                        pending += queued.remaining();
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(gather, 0, count);
+                    int completed = 0;
+                    while (!inFlight.isEmpty() && !inFlight.peekFirst().hasRemaining()) {
+                        inFlight.pollFirst();
+                        completed++;
+                    }
+                    server.recordFlush(completed, written);
+                    if (written < pending) {
+                        // The socket buffer is full: wait until the channel becomes writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+
+            // A message may have been queued after the queue was drained but before the flag was cleared
+            if (outbound.size() == 0 || !writeScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the connection and removes the client from the server, on the reactor owning it.
+     */
+    void close() {
+        if (Thread.currentThread() != reactor) {
+            reactor.execute(this::close); // Only the owner closes, so the client is removed once
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        idleWatch.stop();
+        outbound.close();
+        server.removeClient(this);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace(); // Handle any IO exceptions during closing
+        }
+    }
+}
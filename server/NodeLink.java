@@ -0,0 +1,238 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CountDownLatch;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The NodeLink class is a connection between two server nodes of a cluster.
+ * Frames use the binary wire format with the cluster's own message types. Frames are queued
+ * by any thread and written by the link's writer thread, which flushes whenever the queue
+ * runs empty; a reader thread hands every received frame to the cluster.
+ * Before that, the handshake exchanges node ids and has each node prove it knows the cluster secret.
+ *
+ * No frame is ever dropped: a lost leave would keep a name in the other node's directory for
+ * good. A link whose queue fills up is closed instead. Both nodes then forget each other's
+ * clients, and the next link starts with a full list of names.
+ */
+public class NodeLink {
+    private static final int QUEUE_CAPACITY = 64 * 1024; // Frames waiting for the writer before the link is closed as too slow
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // Longest wait for the other node's hello
+    private static final int HANDSHAKE_FRAME_SIZE = 1024; // Largest frame accepted before the other node is authenticated
+    private static final int CHALLENGE_BYTES = 32; // Random bytes of a challenge
+    private static final SecureRandom RANDOM = new SecureRandom(); // Source of challenges
+
+    private Cluster cluster; // Cluster this link belongs to
+    private Socket socket; // Socket connected to the other node
+    private DataInputStream input; // Stream of frames from the other node
+    private OutputStream output; // Buffered stream of frames to the other node
+    private OutboundQueue<byte[]> outbound = new OutboundQueue<>(QUEUE_CAPACITY, OverflowPolicy.DISCONNECT); // Encoded frames for the writer
+    private CountDownLatch closedLatch = new CountDownLatch(1); // Released when the link is closed
+    private boolean dialed; // Whether this node dialed the other one
+    private String peerId; // Node id of the other node, known after the handshake
+    private byte frameType; // Type of the frame read last, touched only by the reading thread
+    private boolean closed; // Whether the link has been closed
+
+    /**
+     * Constructor for the NodeLink.
+     *
+     * @param cluster The cluster this link belongs to.
+     * @param socket  The socket connected to the other node.
+     * @param dialed  Whether this node dialed the other one.
+     * @throws IOException If the socket streams cannot be opened.
+     */
+    public NodeLink(Cluster cluster, Socket socket, boolean dialed) throws IOException {
+        this.cluster = cluster;
+        this.socket = socket;
+        this.dialed = dialed;
+        this.input = new DataInputStream(socket.getInputStream());
+        this.output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Exchanges node ids and challenges with the other node, answers its challenge and checks
+     * its answer to ours, so neither node trusts the other without proof of the shared secret.
+     *
+     * @param localId The id of this node.
+     * @param secret  The shared secret of the cluster.
+     * @return The id of the other node.
+     * @throws IOException If the other node does not answer in time or its proof is wrong.
+     */
+    public String handshake(String localId, byte[] secret) throws IOException {
+        byte[] random = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(random);
+        String challenge = Base64.getEncoder().encodeToString(random);
+        output.write(Protocol.encodeBinary(Cluster.HELLO, new String[] {localId, challenge}));
+        output.flush();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        String[] hello = readFrame(HANDSHAKE_FRAME_SIZE);
+        if (frameType != Cluster.HELLO || hello.length < 2) {
+            throw new IOException("Expected a hello from the other node");
+        }
+        output.write(Protocol.encodeBinary(Cluster.PROOF, new String[] {proof(secret, hello[1], localId)}));
+        output.flush();
+        String[] proof = readFrame(HANDSHAKE_FRAME_SIZE);
+        if (frameType != Cluster.PROOF || proof.length < 1 || !MessageDigest.isEqual(
+                proof(secret, challenge, hello[0]).getBytes(StandardCharsets.UTF_8), proof[0].getBytes(StandardCharsets.UTF_8))) {
+            throw new IOException("Node " + hello[0] + " did not prove the cluster secret");
+        }
+        socket.setSoTimeout(0);
+        peerId = hello[0];
+        return peerId;
+    }
+
+    /**
+     * Computes the answer to a challenge: an HMAC-SHA256 under the secret of the challenge
+     * and the id of the answering node, so an answer cannot be replayed for another node.
+     *
+     * @param secret    The shared secret of the cluster.
+     * @param challenge The challenge.
+     * @param nodeId    The id of the answering node.
+     * @return The answer, Base64 encoded.
+     */
+    private static String proof(byte[] secret, String challenge, String nodeId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(nodeId.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e); // Every JVM provides it
+        }
+    }
+
+    /**
+     * Returns the id of the other node.
+     *
+     * @return The node id, or null before the handshake.
+     */
+    public String getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Returns whether this node dialed the other one.
+     *
+     * @return True for a link this node dialed, false for one it accepted.
+     */
+    public boolean isDialed() {
+        return dialed;
+    }
+
+    /**
+     * Starts the reader and writer threads.
+     */
+    public void start() {
+        new Thread(this::readFrames, "link-reader-" + peerId).start();
+        new Thread(this::writeFrames, "link-writer-" + peerId).start();
+    }
+
+    /**
+     * Queues a frame for the other node. Never blocks; closes the link if the queue is full.
+     *
+     * @param frame The encoded frame; shared, so it must not be modified.
+     */
+    public void send(byte[] frame) {
+        if (!outbound.offer(frame)) {
+            System.out.println("Link to node " + peerId + " fell behind; closing it to resync");
+            close();
+        }
+    }
+
+    /**
+     * Waits until the link is closed.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitClose() throws InterruptedException {
+        closedLatch.await();
+    }
+
+    /**
+     * Closes the link and tells the cluster about it.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace(); // Handle any IO exceptions during closing
+        }
+        cluster.linkClosed(this);
+        closedLatch.countDown();
+    }
+
+    /**
+     * Reads frames until the link fails and passes each one to the cluster.
+     */
+    private void readFrames() {
+        try {
+            while (true) {
+                String[] fields = readFrame(Cluster.MAX_FRAME_SIZE);
+                cluster.handle(this, frameType, fields);
+            }
+        } catch (IOException e) {
+            // The other node is gone
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes queued frames until the link is closed, flushing whenever the queue runs empty.
+     */
+    private void writeFrames() {
+        try {
+            byte[] frame;
+            while ((frame = outbound.take()) != null) {
+                do {
+                    output.write(frame);
+                } while ((frame = outbound.poll()) != null);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The other node is gone
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Stop writing
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Reads one frame and remembers its type in frameType.
+     *
+     * @param maxSize The largest frame body accepted.
+     * @return The fields of the frame.
+     * @throws IOException If reading fails or the frame is malformed.
+     */
+    private String[] readFrame(int maxSize) throws IOException {
+        byte version = input.readByte();
+        frameType = input.readByte();
+        int length = input.readInt();
+        if (version != Protocol.VERSION || length < 0 || length > maxSize) {
+            throw new IOException("Malformed frame from node " + peerId);
+        }
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return Protocol.decodeFields(body, 0, length);
+    }
+}
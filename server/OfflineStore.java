@@ -0,0 +1,296 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The OfflineStore class keeps private messages for clients that are not connected and hands
+ * them over, in one batch, when the client registers again.
+ *
+ * Every recipient has a mailbox holding at most a fixed number of messages. The oldest few are
+ * kept in memory; once those are used, later messages are appended to a spill file of the mailbox
+ * in the binary wire format, so a burst for one absent client does not grow the heap. Messages
+ * older than the time to live are not delivered, and mailboxes whose newest message has expired
+ * are deleted by a sweep on the server's timer wheel, never by a sender. The number of mailboxes
+ * is bounded as well; a mailbox is counted before it is added, so concurrent stores cannot
+ * exceed the bound.
+ *
+ * The map only finds, adds and removes mailboxes; a mailbox is then used under its own lock,
+ * so spill file writes and reads never hold up other recipients. The lock is a ReentrantLock,
+ * which parks rather than pins a virtual thread waiting through another's disk I/O. The sweep
+ * only tries the lock and leaves a busy mailbox to the next sweep. Each mailbox keeps its spill
+ * file open, so storing a message costs one append rather than opening and closing a file.
+ */
+public class OfflineStore implements TimerWheel.Task {
+    private static final long SWEEP_MILLIS = 60_000; // How often expired mailboxes are deleted
+
+    private Path directory; // Directory holding the spill files
+    private int memoryLimit; // Messages per mailbox kept in memory
+    private int mailboxLimit; // Messages per mailbox in total
+    private int mailboxCount; // Largest number of mailboxes
+    private long ttlMillis; // How long a message is kept
+    private ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>(); // Mailboxes by recipient name
+    private AtomicLong nextFile = new AtomicLong(); // Number of the next spill file
+    private AtomicInteger count = new AtomicInteger(); // Mailboxes in the map, reserved before one is added
+    private AtomicLong dropped = new AtomicLong(); // Messages refused because a limit was reached
+
+    /**
+     * The Mailbox class holds the stored messages of one recipient.
+     * It is only accessed while holding its lock. Once taken or swept it is closed, and a
+     * message stored concurrently goes into a new mailbox instead.
+     */
+    private class Mailbox {
+        private final ReentrantLock lock = new ReentrantLock(); // Guards the mailbox and its spill file
+        private ArrayDeque<OutboundMessage> memory = new ArrayDeque<>(); // Oldest messages, in order
+        private ArrayDeque<Long> memoryTimes = new ArrayDeque<>(); // When each message in memory was stored
+        private Path spillFile; // File holding later messages, or null if none were spilled
+        private FileChannel spillChannel; // Open spill file, appended to
+        private int spilled; // Number of messages in the spill file
+        private long newest; // When the newest message was stored
+        private boolean closed; // Whether the mailbox was taken or swept and left the map
+
+        /**
+         * Stores a message, spilling it to disk once the in-memory part is full.
+         *
+         * @param time    When the message was stored.
+         * @param message The message.
+         * @return False if the mailbox is full.
+         * @throws IOException If the spill file cannot be written.
+         */
+        boolean add(long time, OutboundMessage message) throws IOException {
+            if (memory.size() + spilled >= mailboxLimit) {
+                return false;
+            }
+            if (spilled == 0 && memory.size() < memoryLimit) {
+                memory.add(message);
+                memoryTimes.add(time);
+            } else {
+                if (spillChannel == null) {
+                    spillFile = directory.resolve("mailbox-" + nextFile.getAndIncrement() + ".bin");
+                    spillChannel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                }
+                byte[] frame = message.bytes(true);
+                ByteBuffer record = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + frame.length);
+                record.putLong(time).putInt(frame.length).put(frame).flip();
+                while (record.hasRemaining()) {
+                    spillChannel.write(record);
+                }
+                spilled++;
+            }
+            newest = time;
+            return true;
+        }
+
+        /**
+         * Collects every message that has not expired, oldest first, and deletes the spill file.
+         *
+         * @param oldest The time before which messages have expired.
+         * @return The messages.
+         * @throws IOException If the spill file cannot be read.
+         */
+        List<OutboundMessage> drain(long oldest) throws IOException {
+            List<OutboundMessage> messages = new ArrayList<>(memory.size() + spilled);
+            while (!memory.isEmpty()) {
+                OutboundMessage message = memory.poll();
+                if (memoryTimes.poll() >= oldest) {
+                    messages.add(message);
+                }
+            }
+            if (spillFile != null) {
+                closeChannel();
+                try (DataInputStream input = new DataInputStream(Files.newInputStream(spillFile))) {
+                    for (int i = 0; i < spilled; i++) {
+                        long time = input.readLong();
+                        byte[] frame = new byte[input.readInt()];
+                        input.readFully(frame);
+                        if (time >= oldest) {
+                            String[] fields = Protocol.decodeFields(frame, Protocol.HEADER_SIZE, frame.length - Protocol.HEADER_SIZE);
+                            messages.add(new OutboundMessage(frame[1], true, fields));
+                        }
+                    }
+                } catch (EOFException e) {
+                    // A write failed half way; deliver what was read
+                }
+                delete();
+            }
+            return messages;
+        }
+
+        /**
+         * Closes the spill file, if it is open.
+         */
+        private void closeChannel() {
+            if (spillChannel != null) {
+                try {
+                    spillChannel.close();
+                } catch (IOException e) {
+                    e.printStackTrace(); // Nothing more will be written
+                }
+                spillChannel = null;
+            }
+        }
+
+        /**
+         * Deletes the spill file.
+         */
+        void delete() {
+            closeChannel();
+            if (spillFile != null) {
+                try {
+                    Files.deleteIfExists(spillFile);
+                } catch (IOException e) {
+                    e.printStackTrace(); // Leave the file behind
+                }
+                spillFile = null;
+                spilled = 0;
+            }
+        }
+    }
+
+    /**
+     * Constructor for the OfflineStore. Spill files left behind by an earlier run are deleted.
+     *
+     * @param directory    The directory for spill files; created if missing.
+     * @param memoryLimit  The number of messages per mailbox kept in memory.
+     * @param mailboxLimit The number of messages per mailbox in total.
+     * @param mailboxCount The largest number of mailboxes.
+     * @param ttlMillis    How long a message is kept, in milliseconds.
+     * @param wheel        The timer wheel running the sweep.
+     * @throws IOException If the directory cannot be prepared.
+     */
+    public OfflineStore(Path directory, int memoryLimit, int mailboxLimit, int mailboxCount, long ttlMillis,
+            TimerWheel wheel) throws IOException {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.mailboxLimit = mailboxLimit;
+        this.mailboxCount = mailboxCount;
+        this.ttlMillis = ttlMillis;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "mailbox-*.bin")) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+        wheel.schedule(this, wheel.now() + SWEEP_MILLIS);
+    }
+
+    /**
+     * Stores a private message for a recipient that is not connected.
+     *
+     * @param receiverName The name of the recipient.
+     * @param message      The message.
+     */
+    public void store(String receiverName, OutboundMessage message) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(receiverName, name -> {
+                if (count.incrementAndGet() > mailboxCount) {
+                    count.decrementAndGet();
+                    return null; // The store is full
+                }
+                return new Mailbox();
+            });
+            if (mailbox == null) {
+                dropped.incrementAndGet();
+                return;
+            }
+            mailbox.lock.lock();
+            try {
+                if (mailbox.closed) {
+                    continue; // Taken or swept meanwhile; store into a new mailbox
+                }
+                if (!mailbox.add(now, message)) {
+                    dropped.incrementAndGet();
+                }
+                return;
+            } catch (IOException e) {
+                e.printStackTrace(); // The message is lost, but the sender is not held up
+                dropped.incrementAndGet();
+                return;
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes every message stored for a recipient.
+     *
+     * @param receiverName The name of the recipient.
+     * @return The messages as one batch, or null if none are stored.
+     */
+    public OutboundMessage take(String receiverName) {
+        Mailbox mailbox = mailboxes.remove(receiverName);
+        if (mailbox == null) {
+            return null; // The common case: nothing waiting
+        }
+        count.decrementAndGet();
+        List<OutboundMessage> messages = new ArrayList<>();
+        mailbox.lock.lock(); // Waits for a store that got the mailbox before it was removed
+        try {
+            mailbox.closed = true;
+            messages.addAll(mailbox.drain(System.currentTimeMillis() - ttlMillis));
+        } catch (IOException e) {
+            e.printStackTrace(); // Deliver what could be read
+            mailbox.delete();
+        } finally {
+            mailbox.lock.unlock();
+        }
+        return messages.isEmpty() ? null : OutboundMessage.batch(messages.toArray(new OutboundMessage[0]));
+    }
+
+    /**
+     * Returns the number of messages refused because a mailbox or the store was full.
+     *
+     * @return The drop count.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Deletes mailboxes whose newest message has expired. Runs on the timer wheel thread once per
+     * sweep interval; mailboxes that are in use are left for the next sweep.
+     *
+     * @param now The current time in milliseconds.
+     * @return The time of the next sweep.
+     */
+    @Override
+    public long expired(long now) {
+        long oldest = System.currentTimeMillis() - ttlMillis;
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            if (!mailbox.lock.tryLock()) {
+                continue; // Being stored to or taken, so not expired anyway
+            }
+            try {
+                if (!mailbox.closed && mailbox.newest < oldest) {
+                    mailbox.closed = true;
+                    if (mailboxes.remove(entry.getKey(), mailbox)) {
+                        count.decrementAndGet();
+                    }
+                    mailbox.delete();
+                }
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+        return now + SWEEP_MILLIS;
+    }
+}
@@ -0,0 +1,234 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The OutboundMessage class is a message on its way to one or more clients.
+ * It is immutable and caches its encoding in each wire format, so a single instance
+ * can be queued for any number of clients: a broadcast is encoded at most once per
+ * format no matter how many clients receive it.
+ * Urgent messages are flushed as soon as they are written; others may wait briefly
+ * so that several of them share one flush.
+ * A batch joins several messages into one, so they are queued, written and flushed together.
+ * Clients that negotiated compression get the binary encoding deflated, which is also done at
+ * most once per message, so a batch such as a history replay is compressed as a whole.
+ */
+public class OutboundMessage {
+    private final byte type; // Message type, one of the Protocol constants
+    private final String[] fields; // Fields of the message
+    private final boolean urgent; // Whether the message is an interactive reply that must not be delayed
+    private final OutboundMessage[] parts; // Messages joined by a batch, or null for a single message
+    private volatile byte[] text; // Cached text encoding, including the line terminator
+    private volatile byte[] binary; // Cached binary encoding
+    private volatile byte[] deflated; // Cached binary encoding for clients that accept compressed frames
+
+    /**
+     * Constructor for the OutboundMessage.
+     *
+     * @param type   The message type.
+     * @param urgent Whether the message must be flushed without waiting for others.
+     * @param fields The fields of the message.
+     */
+    public OutboundMessage(byte type, boolean urgent, String... fields) {
+        this.type = type;
+        this.urgent = urgent;
+        this.fields = fields;
+        this.parts = null;
+    }
+
+    /**
+     * Constructor for a batch.
+     *
+     * @param parts The messages to be written together.
+     */
+    private OutboundMessage(OutboundMessage[] parts) {
+        this.type = Protocol.UNKNOWN;
+        this.urgent = true;
+        this.fields = null;
+        this.parts = parts;
+    }
+
+    /**
+     * Creates a batch of messages that is written and flushed as one.
+     * The parts keep their own cached encodings, so they are not encoded again.
+     *
+     * @param parts The messages, in the order they are written.
+     * @return The batch.
+     */
+    public static OutboundMessage batch(OutboundMessage... parts) {
+        return new OutboundMessage(parts);
+    }
+
+    /**
+     * Creates a global chat message.
+     *
+     * @param text The message text, including the sender prefix.
+     * @return The message.
+     */
+    public static OutboundMessage global(String text) {
+        return new OutboundMessage(Protocol.GLOBAL, false, text);
+    }
+
+    /**
+     * Creates a private message.
+     *
+     * @param senderName The name of the sender.
+     * @param text       The message text.
+     * @return The message.
+     */
+    public static OutboundMessage privateMessage(String senderName, String text) {
+        return new OutboundMessage(Protocol.PRIVATE, true, senderName, text);
+    }
+
+    /**
+     * Returns the message type.
+     *
+     * @return One of the Protocol constants.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Returns whether writing this message switches the connection to the binary format.
+     *
+     * @return True for an accepted upgrade request.
+     */
+    public boolean switchesToBinary() {
+        return type == Protocol.UPGRADE_RESPONSE && (Protocol.BINARY.equals(fields[0]) || Protocol.DEFLATE.equals(fields[0])); // Never part of a batch
+    }
+
+    /**
+     * Returns whether writing this message lets the connection send compressed frames.
+     *
+     * @return True for an accepted upgrade request to the compressed binary format.
+     */
+    public boolean enablesCompression() {
+        return type == Protocol.UPGRADE_RESPONSE && Protocol.DEFLATE.equals(fields[0]);
+    }
+
+    /**
+     * Returns whether the message must be flushed without waiting for others.
+     *
+     * @return True for interactive replies, false for messages that may be batched.
+     */
+    public boolean isUrgent() {
+        return urgent;
+    }
+
+    /**
+     * Returns the encoded bytes in the requested format, encoding them on first use.
+     * Concurrent first uses may encode twice, which is harmless as the result is identical.
+     *
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @return The encoded bytes. The array must not be modified.
+     */
+    public byte[] bytes(boolean binaryFormat) {
+        if (binaryFormat) {
+            byte[] encoded = binary;
+            if (encoded == null) {
+                encoded = parts != null ? join(true) : Protocol.encodeBinary(type, fields);
+                binary = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = text;
+        if (encoded == null) {
+            encoded = parts != null ? join(false) : Protocol.encodeText(type, fields);
+            text = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Returns the encoded bytes in the requested format, deflated if the client accepts compressed
+     * frames and the binary encoding is large enough to be worth it.
+     *
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @param compressed   True if the client accepts compressed frames; only used with the binary format.
+     * @return The encoded bytes. The array must not be modified.
+     */
+    public byte[] bytes(boolean binaryFormat, boolean compressed) {
+        if (!binaryFormat || !compressed) {
+            return bytes(binaryFormat);
+        }
+        byte[] encoded = deflated;
+        if (encoded == null) {
+            encoded = Compression.deflate(bytes(true));
+            deflated = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Concatenates the encodings of the parts of a batch.
+     *
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @return The joined bytes.
+     */
+    private byte[] join(boolean binaryFormat) {
+        int length = 0;
+        for (OutboundMessage part : parts) {
+            length += part.bytes(binaryFormat).length;
+        }
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (OutboundMessage part : parts) {
+            byte[] encoded = part.bytes(binaryFormat);
+            System.arraycopy(encoded, 0, joined, offset, encoded.length);
+            offset += encoded.length;
+        }
+        return joined;
+    }
+
+    /**
+     * Returns a read-only view of the encoded bytes with its own position,
+     * so every recipient can be written independently without copying.
+     *
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @return A new buffer sharing the encoded bytes.
+     */
+    public ByteBuffer buffer(boolean binaryFormat) {
+        return buffer(binaryFormat, false);
+    }
+
+    /**
+     * Returns a read-only view of the encoded bytes, deflated if the client accepts compressed frames.
+     *
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @param compressed   True if the client accepts compressed frames.
+     * @return A new buffer sharing the encoded bytes.
+     */
+    public ByteBuffer buffer(boolean binaryFormat, boolean compressed) {
+        return ByteBuffer.wrap(bytes(binaryFormat, compressed)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the encoded bytes to a stream without copying them.
+     *
+     * @param output       The stream to write to.
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @return The number of bytes written.
+     * @throws IOException If writing fails.
+     */
+    public int writeTo(OutputStream output, boolean binaryFormat) throws IOException {
+        return writeTo(output, binaryFormat, false);
+    }
+
+    /**
+     * Writes the encoded bytes to a stream, deflated if the client accepts compressed frames.
+     *
+     * @param output       The stream to write to.
+     * @param binaryFormat True for the binary format, false for the text format.
+     * @param compressed   True if the client accepts compressed frames.
+     * @return The number of bytes written.
+     * @throws IOException If writing fails.
+     */
+    public int writeTo(OutputStream output, boolean binaryFormat, boolean compressed) throws IOException {
+        byte[] encoded = bytes(binaryFormat, compressed);
+        output.write(encoded);
+        return encoded.length;
+    }
+}
@@ -0,0 +1,180 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The OutboundQueue class is a bounded queue of messages waiting to be written to one client.
+ * Any thread may add messages; a single writer removes them. When the queue is full
+ * the configured OverflowPolicy decides whether to drop, disconnect or wait, so a slow
+ * client never holds up the thread that is sending to it unless it was asked to.
+ *
+ * @param <T> The type of the queued messages.
+ */
+public class OutboundQueue<T> {
+    private ArrayDeque<T> messages; // Queued messages, oldest first
+    private int capacity; // Maximum number of queued messages
+    private OverflowPolicy policy; // What to do when the queue is full
+    private ReentrantLock lock = new ReentrantLock(); // Guards the queue; parks rather than pins virtual threads
+    private Condition notEmpty = lock.newCondition(); // Signalled when a message is added or the queue is closed
+    private Condition notFull = lock.newCondition(); // Signalled when a message is removed or the queue is closed
+    private volatile int depth; // Number of queued messages, readable without the lock
+    private volatile long dropped; // Number of messages dropped because the queue was full
+    private boolean closed; // Whether the queue accepts no more messages
+
+    /**
+     * Constructor for the OutboundQueue.
+     *
+     * @param capacity The maximum number of queued messages.
+     * @param policy   What to do when the queue is full.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.messages = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message, applying the overflow policy if the queue is full.
+     * Messages added after the queue was closed are silently discarded.
+     *
+     * @param message The message to be queued.
+     * @return False if the client should be disconnected as a slow consumer, true otherwise.
+     */
+    public boolean offer(T message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (messages.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    dropped++;
+                    return false;
+                } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                    messages.pollFirst();
+                    dropped++;
+                } else {
+                    while (messages.size() >= capacity && !closed) {
+                        notFull.await();
+                    }
+                    if (closed) {
+                        return true;
+                    }
+                }
+            }
+            messages.addLast(message);
+            depth = messages.size();
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Keep the interrupt for the sender
+            dropped++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting until one is available.
+     *
+     * @return The oldest message, or null once the queue is closed and empty.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting at most the given time for one to arrive.
+     *
+     * @param timeout How long to wait.
+     * @param unit    The unit of the timeout.
+     * @return The oldest message, or null if none arrived in time or the queue is closed and empty.
+     * @throws InterruptedException If the writer is interrupted while waiting.
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message without waiting.
+     *
+     * @return The oldest message, or null if the queue is empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue. Messages already queued can still be taken; new ones are discarded
+     * and waiting senders and writers are released.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued messages.
+     *
+     * @return The queue depth.
+     */
+    public int size() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue was full.
+     *
+     * @return The drop count.
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Removes the oldest message while the lock is held.
+     *
+     * @return The oldest message, or null if the queue is empty.
+     */
+    private T removeFirst() {
+        T message = messages.pollFirst();
+        if (message != null) {
+            depth = messages.size();
+            notFull.signal();
+        }
+        return message;
+    }
+}
@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * The OverflowPolicy enum decides what happens when a message is sent to a client
+ * whose outbound queue is already full.
+ */
+public enum OverflowPolicy {
+    DROP_OLDEST, // Discard the oldest queued message to make room
+    DISCONNECT, // Disconnect the client as a slow consumer
+    BLOCK // Make the sender wait until the client catches up
+}
@@ -0,0 +1,167 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Presence class pushes the list of online clients to clients that subscribed to it,
+ * so they can check names without asking the server.
+ *
+ * A new subscriber gets the full list, then every subscriber gets the names that joined and left
+ * since the last update. Changes are collected for a short window and sent as one message shared
+ * by every subscriber, so a mass reconnect of N clients costs N messages per window instead of N
+ * squared. A name that joins and leaves within one window cancels out.
+ * Only clients that sent "Presence Subscribe#presence/1" get updates, as older clients would
+ * take them for private messages.
+ */
+public class Presence {
+    public static final String JOINED = "joined"; // Kind of an update listing clients that came online
+    public static final String LEFT = "left"; // Kind of an update listing clients that went offline
+    private static final int NAMES_PER_MESSAGE = 1000; // Names in one update message, keeping frames small
+
+    private Server server; // Server providing the full list of online clients
+    private long windowMillis; // How long changes are collected before they are sent
+    private Set<Connection> subscribers = ConcurrentHashMap.newKeySet(); // Clients receiving updates
+    private LinkedHashSet<String> joined = new LinkedHashSet<>(); // Clients that came online in this window, guarded by this
+    private LinkedHashSet<String> left = new LinkedHashSet<>(); // Clients that went offline in this window, guarded by this
+    private List<Connection> newSubscribers = new ArrayList<>(); // Clients waiting for the full list, guarded by this
+
+    /**
+     * Constructor for the Presence. Starts the thread sending the updates.
+     *
+     * @param server       The server providing the full list of online clients.
+     * @param windowMillis How long changes are collected before they are sent.
+     */
+    public Presence(Server server, long windowMillis) {
+        this.server = server;
+        this.windowMillis = windowMillis;
+        Thread sender = new Thread(this::sendUpdates, "presence");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Subscribes a client. It gets the full list with the next update.
+     *
+     * @param connection The client.
+     */
+    public synchronized void subscribe(Connection connection) {
+        if (!subscribers.contains(connection) && !newSubscribers.contains(connection)) {
+            newSubscribers.add(connection);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops sending updates to a client.
+     *
+     * @param connection The client.
+     */
+    public synchronized void unsubscribe(Connection connection) {
+        subscribers.remove(connection);
+        newSubscribers.remove(connection);
+    }
+
+    /**
+     * Records that a client came online, here or on another node.
+     *
+     * @param name The name of the client.
+     */
+    public synchronized void online(String name) {
+        if (!left.remove(name)) {
+            joined.add(name);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records that a client went offline, here or on another node.
+     *
+     * @param name The name of the client.
+     */
+    public synchronized void offline(String name) {
+        if (!joined.remove(name)) {
+            left.add(name);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for changes, lets more collect for one window, then sends them.
+     */
+    private void sendUpdates() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (joined.isEmpty() && left.isEmpty() && newSubscribers.isEmpty()) {
+                        wait();
+                    }
+                }
+                Thread.sleep(windowMillis);
+                flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Stop sending updates
+        }
+    }
+
+    /**
+     * Sends the collected changes to the existing subscribers and the full list to the new ones.
+     * The full list is read after the changes were taken, so it already contains them.
+     */
+    private void flush() {
+        List<String> joinedNames;
+        List<String> leftNames;
+        Connection[] existing;
+        List<Connection> added;
+        synchronized (this) {
+            joinedNames = new ArrayList<>(joined);
+            leftNames = new ArrayList<>(left);
+            joined.clear();
+            left.clear();
+            existing = subscribers.toArray(new Connection[0]);
+            added = new ArrayList<>(newSubscribers);
+            subscribers.addAll(added);
+            newSubscribers.clear();
+        }
+
+        List<OutboundMessage> changes = new ArrayList<>();
+        addUpdates(changes, JOINED, joinedNames);
+        addUpdates(changes, LEFT, leftNames);
+        if (!changes.isEmpty()) {
+            OutboundMessage update = changes.size() == 1 ? changes.get(0) : OutboundMessage.batch(changes.toArray(new OutboundMessage[0]));
+            for (Connection subscriber : existing) {
+                subscriber.send(update); // Encoded at most once per format
+            }
+        }
+
+        if (!added.isEmpty()) {
+            List<OutboundMessage> full = new ArrayList<>();
+            addUpdates(full, JOINED, server.onlineNames());
+            if (full.isEmpty()) {
+                full.add(new OutboundMessage(Protocol.PRESENCE_UPDATE, false, JOINED, "")); // Still tells the client presence is on
+            }
+            OutboundMessage update = OutboundMessage.batch(full.toArray(new OutboundMessage[0]));
+            for (Connection subscriber : added) {
+                subscriber.send(update);
+            }
+        }
+    }
+
+    /**
+     * Adds update messages listing names, one per NAMES_PER_MESSAGE names.
+     *
+     * @param messages The list to add to.
+     * @param kind     JOINED or LEFT.
+     * @param names    The names, separated by newlines in each message.
+     */
+    private static void addUpdates(List<OutboundMessage> messages, String kind, List<String> names) {
+        for (int from = 0; from < names.size(); from += NAMES_PER_MESSAGE) {
+            List<String> chunk = names.subList(from, Math.min(names.size(), from + NAMES_PER_MESSAGE));
+            messages.add(new OutboundMessage(Protocol.PRESENCE_UPDATE, false, kind, String.join("\n", chunk)));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The Protocol class defines the two wire formats spoken between client and server.
+ *
+ * The legacy text format sends one line per message, with fields separated by '#'
+ * and newlines inside messages escaped as "@@@@".
+ *
+ * The binary format sends frames: a version byte, a type byte, the length of the rest
+ * of the frame as an int, then every field as an int length followed by UTF-8 bytes.
+ * The version byte is a control character that never starts a text line, so the server
+ * can tell both formats apart message by message. A client asks for the binary format
+ * by sending "Protocol Upgrade#binary/1" after its username; the server switches its
+ * own output right after answering "Protocol Upgrade response#binary/1".
+ * A client asking for "binary/1+deflate" instead may also get COMPRESSED frames, whose body is
+ * the deflated bytes of other frames, and may send them itself.
+ * Message types added later are only sent to clients that asked for them, like presence
+ * updates after "Presence Subscribe#presence/1", because older clients cannot tell them apart.
+ */
+public final class Protocol {
+    public static final byte VERSION = 1; // First byte of every binary frame
+    public static final String BINARY = "binary/1"; // Name of the binary format in the upgrade handshake
+    public static final String DEFLATE = "binary/1+deflate"; // Name of the binary format with compressed frames
+    public static final String PRESENCE = "presence/1"; // Version of presence updates a client asks for
+    public static final String TEXT = "text"; // Name of the text format in the upgrade handshake
+    public static final int MAX_MESSAGE_SIZE = 1024 * 1024; // Largest line or frame accepted from a client, and by a client
+    public static final int MAX_INFLATED_SIZE = 64 * MAX_MESSAGE_SIZE; // Largest batch a client inflates from one compressed frame
+
+    public static final byte UNKNOWN = 0; // A line that is not a valid message
+    public static final byte GLOBAL = 1; // Global chat message: text
+    public static final byte PRIVATE = 2; // Private message: receiver (or sender) name, text
+    public static final byte EXIST = 3; // Existence check: name
+    public static final byte EXIST_RESPONSE = 4; // Existence check result: "true" or "false", name
+    public static final byte NAME_TAKEN = 5; // Username rejected: name
+    public static final byte EXIT = 6; // Client leaves: no fields
+    public static final byte UPGRADE = 7; // Format request: format name
+    public static final byte UPGRADE_RESPONSE = 8; // Format chosen by the server: format name
+    public static final byte ROOM_JOIN = 9; // Join a room: room name
+    public static final byte ROOM_LEAVE = 10; // Leave a room: room name
+    public static final byte ROOM_MESSAGE = 11; // Room chat message: room name, text
+    public static final byte PRESENCE_SUBSCRIBE = 12; // Presence request: presence version name
+    public static final byte PRESENCE_UPDATE = 13; // Online clients: "joined" or "left", names separated by newlines
+    public static final byte HEARTBEAT = 14; // Keeps an idle client connected: any text
+    public static final byte COMPRESSED = 15; // Binary format only: deflated binary frames instead of fields
+
+    static final int HEADER_SIZE = 6; // Version byte, type byte and frame length
+    private static final String ESCAPED_NEWLINE = "@@@@"; // Newline replacement in the text format
+
+    // Leading keyword of each message type in the text format; private messages start with a name instead
+    private static final String[] KEYWORDS = {
+            null, "GLOBAL CHAT", null, "Client Exist", "Client Exist response", "Name Taken response",
+            "EXIT", "Protocol Upgrade", "Protocol Upgrade response", "Room Join", "Room Leave", "Room Message",
+            "Presence Subscribe", "Presence Update", "Heartbeat"
+    };
+    private static final byte[][] KEYWORD_BYTES = new byte[KEYWORDS.length][]; // UTF-8 form of the keywords
+
+    static {
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            if (KEYWORDS[i] != null) {
+                KEYWORD_BYTES[i] = KEYWORDS[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns whether a name is reserved because it is spelled like a message keyword,
+     * so a text line addressed to it would be read as that message instead.
+     *
+     * @param name The client name.
+     * @return True if the name may not be registered.
+     */
+    public static boolean isReservedName(String name) {
+        for (String keyword : KEYWORDS) {
+            if (keyword != null && keyword.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the next complete message from a buffer, in either format.
+     * On success the buffer's position is moved past the message.
+     *
+     * @param buffer  A buffer in read mode holding received bytes.
+     * @param message The holder to fill with the decoded message.
+     * @return True if a message was decoded, false if more bytes are needed.
+     * @throws IOException If the message is larger than MAX_MESSAGE_SIZE.
+     */
+    public static boolean decode(ByteBuffer buffer, InboundMessage message) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (start == limit) {
+            return false;
+        }
+        byte[] bytes = buffer.array();
+
+        // Binary frame
+        if (bytes[start] == VERSION) {
+            if (limit - start < HEADER_SIZE) {
+                return false;
+            }
+            int length = buffer.getInt(start + 2);
+            if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Frame too large: " + length);
+            }
+            if (limit - start < HEADER_SIZE + length) {
+                return false;
+            }
+            if (bytes[start + 1] == COMPRESSED) {
+                decodeCompressed(bytes, start + HEADER_SIZE, length, message);
+            } else {
+                decodeFrame(bytes[start + 1], bytes, start + HEADER_SIZE, length, message);
+            }
+            buffer.position(start + HEADER_SIZE + length);
+            return true;
+        }
+
+        // Text line
+        for (int i = start; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                parseLine(bytes, start, end, message);
+                buffer.position(i + 1);
+                return true;
+            }
+        }
+        if (limit - start > MAX_MESSAGE_SIZE) {
+            throw new IOException("Line too long");
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the next message from a buffer only if it is a complete protocol upgrade request.
+     * Clients send the request together with their name, so answering it before registering
+     * lets the history and stored messages sent on registration use the negotiated format.
+     *
+     * @param buffer  A buffer in read mode holding received bytes.
+     * @param message The holder to fill with the decoded message.
+     * @return True if an upgrade request was decoded; otherwise the buffer is left as it was.
+     */
+    public static boolean decodeUpgrade(ByteBuffer buffer, InboundMessage message) {
+        int start = buffer.position();
+        try {
+            if (decode(buffer, message) && message.getType() == UPGRADE) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Reported when the message is read normally
+        }
+        buffer.position(start);
+        return false;
+    }
+
+    /**
+     * Parses a line of the text format in place. The leading keyword is matched against the
+     * bytes directly, and only the fields the message carries are turned into strings;
+     * everything after the first '#' is the content, so '#' inside user text survives.
+     *
+     * @param bytes   The array holding the line.
+     * @param start   The index of the first byte of the line.
+     * @param end     The index just past the last byte of the line, without its terminator.
+     * @param message The holder to fill with the parsed message.
+     */
+    public static void parseLine(byte[] bytes, int start, int end, InboundMessage message) {
+        message.clear(bytes, start, end - start);
+        int hash = indexOf(bytes, start, end, (byte) '#');
+        if (hash < 0) {
+            if (matches(bytes, start, end, KEYWORD_BYTES[EXIT])) {
+                message.set(EXIT, null, null);
+            }
+            return;
+        }
+        if (hash + 1 == end) {
+            return; // No content
+        }
+
+        if (matches(bytes, start, hash, KEYWORD_BYTES[EXIST])) {
+            message.set(EXIST, new String(bytes, hash + 1, end - hash - 1, StandardCharsets.UTF_8), null);
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[GLOBAL])) {
+            message.set(GLOBAL, null, unescape(bytes, hash + 1, end, message));
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[UPGRADE])) {
+            message.set(UPGRADE, null, new String(bytes, hash + 1, end - hash - 1, StandardCharsets.UTF_8));
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[HEARTBEAT])) {
+            message.set(HEARTBEAT, null, null);
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[PRESENCE_SUBSCRIBE])) {
+            message.set(PRESENCE_SUBSCRIBE, null, new String(bytes, hash + 1, end - hash - 1, StandardCharsets.UTF_8));
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[ROOM_JOIN])) {
+            message.set(ROOM_JOIN, new String(bytes, hash + 1, end - hash - 1, StandardCharsets.UTF_8), null);
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[ROOM_LEAVE])) {
+            message.set(ROOM_LEAVE, new String(bytes, hash + 1, end - hash - 1, StandardCharsets.UTF_8), null);
+        } else if (matches(bytes, start, hash, KEYWORD_BYTES[ROOM_MESSAGE])) {
+            int second = indexOf(bytes, hash + 1, end, (byte) '#'); // Room names never contain '#'
+            if (second > 0) {
+                String room = new String(bytes, hash + 1, second - hash - 1, StandardCharsets.UTF_8);
+                message.set(ROOM_MESSAGE, room, unescape(bytes, second + 1, end, message));
+            }
+        } else {
+            String receiverName = new String(bytes, start, hash - start, StandardCharsets.UTF_8);
+            message.set(PRIVATE, receiverName, unescape(bytes, hash + 1, end, message));
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of a byte in a range.
+     *
+     * @param bytes The array to search.
+     * @param from  The first index to search.
+     * @param to    The index just past the range.
+     * @param value The byte to find.
+     * @return The index, or -1 if the byte does not occur.
+     */
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a range of bytes equals a keyword.
+     *
+     * @param bytes   The array holding the range.
+     * @param from    The first index of the range.
+     * @param to      The index just past the range.
+     * @param keyword The keyword bytes.
+     * @return True if the range equals the keyword.
+     */
+    private static boolean matches(byte[] bytes, int from, int to, byte[] keyword) {
+        if (to - from != keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (bytes[from + i] != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the content of a text message, turning every "@@@@" back into a newline.
+     * Content without escapes is decoded straight from the line; otherwise the bytes are
+     * unescaped into the holder's reusable scratch array first.
+     *
+     * @param bytes   The array holding the content.
+     * @param from    The first index of the content.
+     * @param to      The index just past the content.
+     * @param message The holder providing the scratch array.
+     * @return The unescaped content.
+     */
+    private static String unescape(byte[] bytes, int from, int to, InboundMessage message) {
+        int escape = indexOfEscape(bytes, from, to);
+        if (escape < 0) {
+            return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        byte[] scratch = message.scratch(to - from);
+        int length = escape - from;
+        System.arraycopy(bytes, from, scratch, 0, length);
+        int i = escape;
+        while (i < to) {
+            if (i + 4 <= to && bytes[i] == '@' && bytes[i + 1] == '@' && bytes[i + 2] == '@' && bytes[i + 3] == '@') {
+                scratch[length++] = '\n';
+                i += 4;
+            } else {
+                scratch[length++] = bytes[i++];
+            }
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of the first escaped newline in a range.
+     *
+     * @param bytes The array to search.
+     * @param from  The first index to search.
+     * @param to    The index just past the range.
+     * @return The index, or -1 if the range contains no escaped newline.
+     */
+    private static int indexOfEscape(byte[] bytes, int from, int to) {
+        for (int i = from; i + 4 <= to; i++) {
+            if (bytes[i] == '@' && bytes[i + 1] == '@' && bytes[i + 2] == '@' && bytes[i + 3] == '@') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the fields of a binary frame sent by a client.
+     *
+     * @param type    The message type.
+     * @param bytes   The array holding the frame.
+     * @param offset  The index of the first field.
+     * @param length  The total length of the fields.
+     * @param message The holder to fill with the decoded message.
+     * @throws IOException If a field length runs past the end of the frame.
+     */
+    private static void decodeFrame(byte type, byte[] bytes, int offset, int length, InboundMessage message) throws IOException {
+        message.clear(null, 0, 0);
+        String first = null;
+        String second = null;
+        int end = offset + length;
+        int fields = 0;
+        while (offset < end) {
+            if (end - offset < 4) {
+                throw new IOException("Truncated field");
+            }
+            int size = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                    | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+            offset += 4;
+            if (size < 0 || size > end - offset) {
+                throw new IOException("Truncated field");
+            }
+            String field = new String(bytes, offset, size, StandardCharsets.UTF_8);
+            offset += size;
+            if (fields == 0) {
+                first = field;
+            } else if (fields == 1) {
+                second = field;
+            }
+            fields++;
+        }
+
+        switch (type) {
+            case GLOBAL:
+            case UPGRADE:
+            case PRESENCE_SUBSCRIBE:
+                message.set(type, null, first);
+                break;
+            case PRIVATE:
+            case ROOM_MESSAGE:
+                message.set(type, first, second);
+                break;
+            case EXIST:
+            case ROOM_JOIN:
+            case ROOM_LEAVE:
+                message.set(type, first, null);
+                break;
+            case EXIT:
+            case HEARTBEAT:
+                message.set(type, null, null);
+                break;
+            default:
+                break; // Unknown types are ignored
+        }
+    }
+
+    /**
+     * Inflates a compressed frame sent by a client and decodes the single frame inside it.
+     *
+     * @param bytes   The array holding the compressed frame.
+     * @param offset  The index of the deflated body.
+     * @param length  The length of the deflated body.
+     * @param message The holder to fill with the decoded message.
+     * @throws IOException If the body is malformed, too large or not exactly one frame.
+     */
+    private static void decodeCompressed(byte[] bytes, int offset, int length, InboundMessage message) throws IOException {
+        byte[] inner = Compression.inflate(bytes, offset, length, HEADER_SIZE + MAX_MESSAGE_SIZE);
+        if (inner.length < HEADER_SIZE || inner[0] != VERSION || inner[1] == COMPRESSED
+                || ByteBuffer.wrap(inner).getInt(2) != inner.length - HEADER_SIZE) {
+            throw new IOException("Compressed frame does not hold one frame");
+        }
+        decodeFrame(inner[1], inner, HEADER_SIZE, inner.length - HEADER_SIZE, message);
+    }
+
+    /**
+     * Decodes every field of a binary frame.
+     *
+     * @param bytes  The array holding the frame.
+     * @param offset The index of the first field.
+     * @param length The total length of the fields.
+     * @return The fields.
+     * @throws IOException If a field length runs past the end of the frame.
+     */
+    public static String[] decodeFields(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(bytes, offset, length);
+        String[] fields = new String[4];
+        int count = 0;
+        while (frame.hasRemaining()) {
+            if (frame.remaining() < 4) {
+                throw new IOException("Truncated field");
+            }
+            int size = frame.getInt();
+            if (size < 0 || size > frame.remaining()) {
+                throw new IOException("Truncated field");
+            }
+            if (count == fields.length) {
+                fields = Arrays.copyOf(fields, count * 2);
+            }
+            fields[count++] = new String(bytes, frame.position(), size, StandardCharsets.UTF_8);
+            frame.position(frame.position() + size);
+        }
+        return Arrays.copyOf(fields, count);
+    }
+
+    /**
+     * Encodes a message in the text format, including the line terminator.
+     *
+     * @param type   The message type.
+     * @param fields The fields of the message.
+     * @return The encoded bytes.
+     */
+    public static byte[] encodeText(byte type, String[] fields) {
+        StringBuilder line = new StringBuilder();
+        String keyword = KEYWORDS[type];
+        if (keyword != null) {
+            line.append(keyword);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (keyword != null || i > 0) {
+                line.append('#');
+            }
+            line.append(fields[i].replace("\n", ESCAPED_NEWLINE));
+        }
+        line.append('\n');
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a message in the binary format.
+     *
+     * @param type   The message type.
+     * @param fields The fields of the message.
+     * @return The encoded frame.
+     */
+    public static byte[] encodeBinary(byte type, String[] fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put(VERSION).put(type).putInt(length);
+        for (byte[] field : encoded) {
+            frame.putInt(field.length).put(field);
+        }
+        return frame.array();
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The Reactor class is a single event loop thread of the non-blocking server mode.
+ * It owns a Selector and services reads and writes for every channel registered with it,
+ * so a handful of reactors can serve thousands of clients.
+ *
+ * Each reactor also owns the registry shards mapped to it. Other threads hand it work for
+ * those clients through lock-free queues, which the reactor drains on every loop iteration.
+ */
+public class Reactor extends Thread {
+    private Server server; // Reference to the server
+    private Selector selector; // Selector multiplexing all channels of this reactor
+    private Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>(); // Accepted channels waiting to be registered
+    private Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>(); // Connections with queued output to flush
+    private Queue<NioConnection> pendingMoves = new ConcurrentLinkedQueue<>(); // Connections moving in from other reactors
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over by other threads
+
+    /**
+     * Constructor for the Reactor.
+     *
+     * @param server The server instance.
+     * @param id     The index of this reactor, used for the thread name.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public Reactor(Server server, int id) throws IOException {
+        super("reactor-" + id);
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands a freshly accepted channel to this reactor.
+     * The channel is registered on the reactor thread itself.
+     *
+     * @param channel The accepted, non-blocking socket channel.
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Takes over a registered connection from another reactor. The connection must
+     * already have cancelled its key with the old reactor.
+     *
+     * @param connection The connection to move onto this reactor.
+     */
+    void adopt(NioConnection connection) {
+        pendingMoves.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on this reactor's thread. Runs it at once when called from the reactor itself.
+     *
+     * @param task The task, such as delivering a message to a client of this reactor.
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Asks the reactor to flush the output queued on a connection.
+     *
+     * @param connection The connection that has pending output.
+     */
+    void requestWrite(NioConnection connection) {
+        pendingWrites.add(connection);
+        if (Thread.currentThread() != this) {
+            selector.wakeup(); // Only wake the selector when called from another thread
+        }
+    }
+
+    /**
+     * The run method is the event loop: it waits for ready channels and dispatches
+     * read and write readiness to the owning connections.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                adoptPendingConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        fail(connection, e);
+                    }
+                }
+
+                // Deliver messages handed over by other threads, then flush everything queued
+                runTasks();
+                flushPendingWrites();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(); // Handle selector failures without killing the reactor
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose handler threw, so one bad client does not take down the
+     * reactor and strand every other connection on it.
+     *
+     * @param connection The connection.
+     * @param e          The exception thrown while handling it.
+     */
+    private void fail(NioConnection connection, RuntimeException e) {
+        e.printStackTrace();
+        try {
+            connection.close();
+        } catch (RuntimeException closeFailure) {
+            closeFailure.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers every channel handed over by the accept thread since the last loop iteration.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            NioConnection connection = new NioConnection(server, this, channel);
+            try {
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.close(); // The client went away before it could be registered
+            }
+        }
+    }
+
+    /**
+     * Registers every connection moved over from another reactor and writes what it has queued.
+     */
+    private void adoptPendingConnections() {
+        NioConnection connection;
+        while ((connection = pendingMoves.poll()) != null) {
+            try {
+                connection.moved(this, connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.close(); // The client went away while it was moving
+            }
+        }
+    }
+
+    /**
+     * Runs every task handed over since the last loop iteration.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // A failed delivery must not stop the other tasks or the loop
+            }
+        }
+    }
+
+    /**
+     * Flushes every connection that queued output since the last loop iteration.
+     */
+    private void flushPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+    }
+}
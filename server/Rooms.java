@@ -0,0 +1,149 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Rooms class keeps track of named chat rooms and their members.
+ * Membership is indexed both ways: every room has its own registry of members, used to fan out
+ * room messages to members only, and every client has the set of rooms it joined, so removing
+ * a client touches only its own rooms. Rooms are created by their first join and disappear
+ * with their last member.
+ */
+public class Rooms {
+    private static final int MAX_NAME_LENGTH = 64; // Longest room name
+    private static final int MAX_ROOMS_PER_CLIENT = 100; // Most rooms one client may be in
+
+    private ConcurrentHashMap<String, ClientRegistry> rooms = new ConcurrentHashMap<>(); // Members of each room by room name
+    private ConcurrentHashMap<Connection, Set<String>> memberships = new ConcurrentHashMap<>(); // Rooms of each client
+
+    /**
+     * Checks whether a room name can be used. Names are sent as a field of the text format,
+     * so they must not contain '#' or line breaks.
+     *
+     * @param room The room name.
+     * @return True if the name is valid.
+     */
+    public static boolean isValidName(String room) {
+        if (room == null || room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (c == '#' || c == '\n' || c == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a client to a room, creating the room if needed.
+     *
+     * @param client The client.
+     * @param room   The room name.
+     * @return False if the name is invalid or the client is in too many rooms.
+     */
+    public boolean join(Connection client, String room) {
+        if (!isValidName(room)) {
+            return false;
+        }
+        Set<String> joined = memberships.computeIfAbsent(client, key -> ConcurrentHashMap.newKeySet());
+        if (joined.size() >= MAX_ROOMS_PER_CLIENT && !joined.contains(room)) {
+            return false;
+        }
+        joined.add(room);
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = new ClientRegistry();
+            }
+            members.register(client);
+            return members;
+        });
+        return true;
+    }
+
+    /**
+     * Removes a client from a room, deleting the room if it is now empty.
+     *
+     * @param client The client.
+     * @param room   The room name.
+     */
+    public void leave(Connection client, String room) {
+        Set<String> joined = memberships.get(client);
+        if (joined != null && joined.remove(room)) {
+            removeMember(client, room);
+        }
+    }
+
+    /**
+     * Removes a client from every room it is in. Costs one step per room of the client.
+     *
+     * @param client The client.
+     */
+    public void leaveAll(Connection client) {
+        Set<String> joined = memberships.remove(client);
+        if (joined != null) {
+            for (String room : joined) {
+                removeMember(client, room);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a client is in a room.
+     *
+     * @param client The client.
+     * @param room   The room name.
+     * @return True if the client is a member.
+     */
+    public boolean isMember(Connection client, String room) {
+        Set<String> joined = memberships.get(client);
+        return joined != null && joined.contains(room);
+    }
+
+    /**
+     * Returns the members of a room.
+     *
+     * @param room The room name.
+     * @return The members; must not be modified.
+     */
+    public Connection[] members(String room) {
+        ClientRegistry members = rooms.get(room);
+        return members != null ? members.snapshot() : new Connection[0];
+    }
+
+    /**
+     * Returns the rooms a client is in.
+     *
+     * @param client The client.
+     * @return The room names.
+     */
+    public Set<String> roomsOf(Connection client) {
+        Set<String> joined = memberships.get(client);
+        return joined != null ? Collections.unmodifiableSet(joined) : Collections.emptySet();
+    }
+
+    /**
+     * Returns the number of rooms.
+     *
+     * @return The room count.
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Removes a client from the member registry of a room and drops the room once it is empty.
+     *
+     * @param client The client.
+     * @param room   The room name.
+     */
+    private void removeMember(Connection client, String room) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.unregister(client);
+            return members.size() == 0 ? null : members;
+        });
+    }
+}
@@ -1,29 +1,134 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Server class is responsible for managing client connections and routing messages.
  * It listens for incoming client connections, creates a ClientHandler for each client,
- * and manages the list of connected clients.
+ * and keeps the connected clients in a name-indexed registry.
  */
 public class Server {
-    private static int port = 6789; // Default port for the server
+    private static int port = Integer.getInteger("talktik.port", 6789); // Port for client connections
+    private static String mode = "blocking"; // Connection handling mode: "blocking", "virtual" or "nio"
+    private static int reactors = Runtime.getRuntime().availableProcessors(); // Number of event loops in nio mode
+    private static int shards = Integer.getInteger("talktik.shards", Runtime.getRuntime().availableProcessors()); // Registry shards, spread over the reactors in nio mode
+    private static int queueCapacity = Integer.getInteger("talktik.queueCapacity", 1024); // Outbound messages buffered per client
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(System.getProperty("talktik.overflowPolicy", "DROP_OLDEST")); // Policy for full client queues
+    private static int flushWindowMicros = Integer.getInteger("talktik.flushWindowMicros", 1000); // How long a writer waits for more messages before flushing
+    private static int flushBytes = Integer.getInteger("talktik.flushBytes", 16 * 1024); // Bytes a writer collects before flushing regardless of the window
     private ServerSocket serverSocket; // Server socket to listen for client connections
-    private List<ClientHandler> clients; // List to keep track of connected clients
+    private ExecutorService handlerExecutor; // Executor running client handlers, or null for one platform thread each
+    private static int metricsPort = Integer.getInteger("talktik.metricsPort", 0); // Loopback port of the metrics endpoint, 0 for none
+    private static String logDir = System.getProperty("talktik.logDir"); // Directory of the message log, null for none
+    private static int logSegmentBytes = Integer.getInteger("talktik.logSegmentBytes", 64 * 1024 * 1024); // Size of one log segment
+    private static long logRetentionBytes = Long.getLong("talktik.logRetentionBytes", 1024L * 1024 * 1024); // Total size of log segments kept
+    private static long logRetentionHours = Long.getLong("talktik.logRetentionHours", 7 * 24); // Age after which log segments are deleted
+    private static long logSyncMillis = Long.getLong("talktik.logSyncMillis", 50); // Longest time a logged message waits for fsync
+    private static int historySize = Integer.getInteger("talktik.historySize", 100); // Global messages replayed to new clients, 0 for none
+    private static int offlineLimit = Integer.getInteger("talktik.offlineLimit", 100); // Private messages kept per absent client, 0 for none
+    private static int offlineMemory = Integer.getInteger("talktik.offlineMemory", 16); // Of those, messages kept in memory before spilling to disk
+    private static int offlineUsers = Integer.getInteger("talktik.offlineUsers", 10_000); // Absent clients messages are kept for
+    private static long offlineTtlMinutes = Long.getLong("talktik.offlineTtlMinutes", 24 * 60); // How long messages for absent clients are kept
+    private static String offlineDir = System.getProperty("talktik.offlineDir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "talktik-offline").toString()); // Directory for spilled messages
+    private static int clusterPort = Integer.getInteger("talktik.clusterPort", 0); // Port for links from other nodes, 0 for a single node
+    private static String clusterAddress = System.getProperty("talktik.clusterAddress", "127.0.0.1"); // Address the cluster port is bound to
+    private static String clusterSecret = System.getProperty("talktik.clusterSecret"); // Secret shared by the nodes of the cluster
+    private static String peers = System.getProperty("talktik.peers"); // Other nodes as comma-separated host:port of their cluster ports
+    private static String nodeId = System.getProperty("talktik.nodeId", UUID.randomUUID().toString()); // Id of this node in the cluster
+    private static long nameTimeoutSeconds = Long.getLong("talktik.nameTimeoutSeconds", 10); // Time a new connection has to send its name
+    private static long idleTimeoutSeconds = Long.getLong("talktik.idleTimeoutSeconds", 45); // Quiet time after which a client sending heartbeats is disconnected
+    private static long legacyIdleTimeoutSeconds = Long.getLong("talktik.legacyIdleTimeoutSeconds", 0); // Same for clients without heartbeats, 0 for never
+    private static long presenceWindowMillis = Long.getLong("talktik.presenceWindowMillis", 100); // How long presence changes are collected before they are pushed
+    private Metrics metrics = new Metrics(); // Counters for the metrics endpoint
+    private Rooms rooms = new Rooms(); // Chat rooms and their members
+    private Presence presence = new Presence(this, presenceWindowMillis); // Online list pushed to subscribed clients
+    private TimerWheel timers = new TimerWheel(250, 512, "timers"); // Idle deadlines of every connection
+    private History history = historySize > 0 ? new History(historySize) : null; // Recent global messages, or null if replay is off
+    private MessageLog messageLog; // Log of every routed message, or null if logging is off
+    private OfflineStore offlineStore; // Private messages for absent clients, or null if they are dropped
+    private Cluster cluster; // Links to the other nodes, or null for a single node
+    private Reactor[] reactorPool; // Event loops in nio mode, or null in the other modes
+    private ClientRegistry clients = new ClientRegistry(shards); // Registry of connected clients by name
 
     /**
      * The main method starts the server and listens for client connections.
      *
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments: an optional mode ("blocking", "virtual" or "nio")
+     *             followed by an optional number of reactor threads for nio mode.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            mode = args[0];
+        }
+        if (args.length > 1) {
+            reactors = Integer.parseInt(args[1]);
+        }
+
         Server server = new Server();
-        server.connect(port); // Start the server on the specified port
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsPort, server.metrics, server.clients);
+                System.out.println("Metrics available on http://localhost:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                e.printStackTrace(); // Keep serving clients without metrics
+            }
+        }
+        if (logDir != null) {
+            if (server.history != null) {
+                server.restoreHistory(Paths.get(logDir));
+            }
+            try {
+                server.messageLog = new MessageLog(Paths.get(logDir), logSegmentBytes, logRetentionBytes,
+                        TimeUnit.HOURS.toMillis(logRetentionHours), logSyncMillis, server.metrics);
+                Runtime.getRuntime().addShutdownHook(new Thread(server.messageLog::close)); // Force the last records to disk
+                System.out.println("Logging messages to " + logDir);
+            } catch (IOException e) {
+                e.printStackTrace(); // Keep serving clients without a log
+            }
+        }
+        if (offlineLimit > 0) {
+            try {
+                server.offlineStore = new OfflineStore(Paths.get(offlineDir), offlineMemory, offlineLimit, offlineUsers,
+                        TimeUnit.MINUTES.toMillis(offlineTtlMinutes), server.timers);
+            } catch (IOException e) {
+                e.printStackTrace(); // Keep serving clients, dropping messages for absent ones
+            }
+        }
+        if (clusterPort > 0 && (clusterSecret == null || clusterSecret.isEmpty())) {
+            System.out.println("talktik.clusterSecret is not set; running as a single node");
+        } else if (clusterPort > 0) {
+            server.cluster = new Cluster(server, nodeId, clusterAddress, clusterPort,
+                    clusterSecret.getBytes(StandardCharsets.UTF_8), Cluster.parsePeers(peers));
+            try {
+                server.cluster.start();
+            } catch (IOException e) {
+                e.printStackTrace(); // Run as a single node
+                server.cluster = null;
+            }
+        }
+        if (mode.equals("nio")) {
+            server.connectNio(port, reactors); // Start the non-blocking server
+        } else if (mode.equals("virtual")) {
+            server.connectVirtual(port); // Start the server with one virtual thread per client
+        } else {
+            server.connect(port); // Start the server on the specified port
+        }
     }
 
     /**
@@ -32,8 +137,6 @@ public class Server {
      * @param portNumber The port number on which the server will listen.
      */
     public void connect(int portNumber) {
-        clients = new ArrayList<>(); // Initialize the list of clients
-
         try {
             serverSocket = new ServerSocket(portNumber); // Create a server socket
             System.out.println("Server started on port " + portNumber);
@@ -41,12 +144,15 @@ public class Server {
             // Continuously accept new client connections
             while (true) {
                 Socket clientSocket = serverSocket.accept(); // Accept a new client connection
-                System.out.println("New client connected");
+                metrics.connectionAccepted();
 
                 // Create a new ClientHandler for the connected client
                 ClientHandler clientHandler = new ClientHandler(this, clientSocket);
-                clients.add(clientHandler); // Add the client to the list
-                clientHandler.start(); // Start the client handler thread
+                if (handlerExecutor != null) {
+                    handlerExecutor.execute(clientHandler); // Run the handler on the executor
+                } else {
+                    clientHandler.start(); // Start the client handler thread
+                }
             }
         } catch (IOException e) {
             e.printStackTrace(); // Handle any IO exceptions
@@ -62,57 +168,504 @@ public class Server {
     }
 
     /**
-     * Checks if a client with the specified name exists.
+     * Initializes the server so that every ClientHandler runs on its own virtual thread
+     * instead of a platform thread. Idle clients then cost a parked virtual thread
+     * rather than an OS thread and its stack.
+     * Falls back to a cached platform thread pool on JVMs without virtual threads.
      *
-     * @param handler      The ClientHandler requesting the check.
-     * @param receiverName The name of the client to check.
+     * @param portNumber The port number on which the server will listen.
      */
-    public void clientExist(ClientHandler handler, String receiverName) {
-        for (ClientHandler client : clients) {
-            if (client.getClientName().equals(receiverName)) {
-                // Notify the handler that the client exists
-                handler.sendMessage("Client Exist response#true#" + receiverName);
-                return;
+    public void connectVirtual(int portNumber) {
+        try {
+            // Looked up reflectively so the server still compiles and runs on older JDKs
+            handlerExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using a cached thread pool");
+            handlerExecutor = Executors.newCachedThreadPool();
+        }
+        connect(portNumber);
+    }
+
+    /**
+     * Initializes the server in non-blocking mode. A fixed pool of reactors services
+     * all client channels, and this thread only accepts new connections.
+     *
+     * @param portNumber   The port number on which the server will listen.
+     * @param reactorCount The number of reactor threads.
+     */
+    public void connectNio(int portNumber, int reactorCount) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(portNumber)); // Create a server channel
+
+            // Start the reactor threads; shard i belongs to reactor i modulo the reactor count
+            Reactor[] pool = new Reactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                pool[i] = new Reactor(this, i);
+                pool[i].start();
             }
+            reactorPool = pool;
+            System.out.println("Server started on port " + portNumber + " with " + reactorCount + " reactors");
+
+            // Continuously accept new client connections and spread them over the reactors
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept(); // Accept a new client connection
+                metrics.connectionAccepted();
+
+                clientChannel.configureBlocking(false);
+                clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true); // Lets the system notice dead peers that never send heartbeats
+                pool[next].register(clientChannel);
+                next = (next + 1) % reactorCount;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // Handle any IO exceptions
         }
-        // Notify the handler that the client does not exist
-        handler.sendMessage("Client Exist response#false#" + receiverName);
+    }
+
+    /**
+     * Returns the reactor owning the registry shard of a client.
+     *
+     * @param name The name of the client.
+     * @return The reactor, or null if the server is not in nio mode.
+     */
+    Reactor reactorFor(String name) {
+        Reactor[] pool = reactorPool;
+        return pool != null ? pool[clients.shardOf(name) % pool.length] : null;
+    }
+
+    /**
+     * Creates the outbound queue of a new client using the configured capacity and overflow policy.
+     *
+     * @param canBlock Whether senders may wait on this queue. Event loop threads must never
+     *                 wait, so for them a blocking policy falls back to dropping the oldest message.
+     * @param <T>      The type of the queued messages.
+     * @return A new outbound queue.
+     */
+    <T> OutboundQueue<T> createOutboundQueue(boolean canBlock) {
+        OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.BLOCK && !canBlock) {
+            policy = OverflowPolicy.DROP_OLDEST;
+        }
+        return new OutboundQueue<>(queueCapacity, policy);
+    }
+
+    /**
+     * Returns how long a writer may wait for more messages before flushing.
+     *
+     * @return The flush window in microseconds.
+     */
+    int getFlushWindowMicros() {
+        return flushWindowMicros;
+    }
+
+    /**
+     * Returns how many bytes a writer may collect before it must flush.
+     *
+     * @return The flush budget in bytes.
+     */
+    int getFlushBytes() {
+        return flushBytes;
+    }
+
+    /**
+     * Records one flush to a client socket.
+     *
+     * @param messages The number of messages the flush completed.
+     * @param bytes    The number of bytes written.
+     */
+    void recordFlush(int messages, long bytes) {
+        metrics.recordFlush(messages, bytes);
+    }
+
+    /**
+     * Returns the server's metrics.
+     *
+     * @return The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the clients connected to this node.
+     *
+     * @return The clients. The array must not be modified.
+     */
+    Connection[] localClients() {
+        return clients.snapshot();
+    }
+
+    /**
+     * Returns the names of every client online in the cluster, on this node and on the others.
+     *
+     * @return The names.
+     */
+    List<String> onlineNames() {
+        List<String> names = new ArrayList<>();
+        for (Connection client : clients.snapshot()) {
+            names.add(client.getClientName());
+        }
+        if (cluster != null) {
+            names.addAll(cluster.remoteNames());
+        }
+        return names;
+    }
+
+    /**
+     * Records that a client of another node came online or went offline.
+     *
+     * @param name   The name of the client.
+     * @param online Whether the client came online.
+     */
+    void remotePresenceChanged(String name, boolean online) {
+        if (online) {
+            presence.online(name);
+        } else {
+            presence.offline(name);
+        }
+    }
+
+    /**
+     * Starts watching a new connection for idleness.
+     *
+     * @param connection The connection.
+     * @return The watch, which the connection must tell about its activity.
+     */
+    IdleWatch watchIdle(Connection connection) {
+        return new IdleWatch(connection, timers, metrics, TimeUnit.SECONDS.toMillis(nameTimeoutSeconds),
+                TimeUnit.SECONDS.toMillis(idleTimeoutSeconds), TimeUnit.SECONDS.toMillis(legacyIdleTimeoutSeconds));
+    }
+
+    /**
+     * Runs a per-client background task, such as a writer, on the same kind of thread
+     * as the client handlers: a virtual thread in virtual mode, a platform thread otherwise.
+     *
+     * @param task The task to run.
+     * @param name The name of the thread in blocking mode.
+     */
+    void execute(Runnable task, String name) {
+        if (handlerExecutor != null) {
+            handlerExecutor.execute(task);
+        } else {
+            new Thread(task, name).start();
+        }
+    }
+
+    /**
+     * Registers a client once its name has been received. The client is then sent the recent global
+     * messages in one batch and the private messages stored while it was away in another.
+     * If the name is already in use or reserved for a message keyword, the client is told it is
+     * taken and must be disconnected by the caller.
+     *
+     * @param connection The connection of the new client.
+     * @return True if the client was registered, false if the name is already taken.
+     */
+    public boolean registerClient(Connection connection) {
+        boolean unavailable = Protocol.isReservedName(connection.getClientName())
+                || cluster != null && cluster.nodeOf(connection.getClientName()) != null;
+        if (!unavailable && registerWithHistory(connection)) {
+            metrics.clientRegistered(true);
+            if (cluster != null) {
+                cluster.clientAdded(connection.getClientName());
+            }
+            presence.online(connection.getClientName());
+            OutboundMessage stored = offlineStore != null ? offlineStore.take(connection.getClientName()) : null;
+            if (stored != null) {
+                connection.send(stored);
+            }
+            return true;
+        }
+        metrics.clientRegistered(false);
+        connection.send(new OutboundMessage(Protocol.NAME_TAKEN, true, connection.getClientName()));
+        return false;
+    }
+
+    /**
+     * Registers a client and sends it the recent global messages. Holds the history's lock, as
+     * deliverGlobalMessage does while adding a message and taking its recipients, so a client
+     * joining during a broadcast gets the message exactly once: in its replay or in the broadcast.
+     *
+     * @param connection The connection of the new client.
+     * @return True if the client was registered, false if the name is already taken.
+     */
+    private boolean registerWithHistory(Connection connection) {
+        if (history == null) {
+            return clients.register(connection);
+        }
+        synchronized (history) {
+            if (!clients.register(connection)) {
+                return false;
+            }
+            OutboundMessage replay = history.replay();
+            if (replay != null) {
+                connection.send(replay); // Shared by every client joining before the next global message
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fills the history with the global messages of an earlier run, so clients joining right
+     * after a restart still see what was said before it. Must run before the log is opened.
+     *
+     * @param logDir The directory of the message log.
+     */
+    private void restoreHistory(Path logDir) {
+        try {
+            MessageLog.replay(logDir, (time, receiverName, type, fields) -> {
+                if (type == Protocol.GLOBAL && receiverName == null) {
+                    history.add(OutboundMessage.global(fields[0])); // The ring keeps only the newest ones
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace(); // Start with whatever was restored before the bad record
+        }
+    }
+
+    /**
+     * Processes a message received from a client (existence check, global chat, private message,
+     * room membership, room message, protocol upgrade or presence subscription). Exit requests are handled by the connection itself.
+     *
+     * @param sender  The connection that sent the message.
+     * @param message The decoded message.
+     */
+    public void handleMessage(Connection sender, InboundMessage message) {
+        metrics.messageReceived(message.getType());
+        switch (message.getType()) {
+            // Check if the client exists
+            case Protocol.EXIST:
+                clientExist(sender, message.getTarget());
+                break;
+
+            // Handle global chat messages
+            case Protocol.GLOBAL:
+                sendGlobalMessage(message.getBody());
+                break;
+
+            // Handle private messages
+            case Protocol.PRIVATE:
+                sendPrivateMessage(sender.getClientName(), message.getTarget(), message.getBody());
+                break;
+
+            // Handle room membership and room messages
+            case Protocol.ROOM_JOIN:
+                rooms.join(sender, message.getTarget());
+                break;
+
+            case Protocol.ROOM_LEAVE:
+                rooms.leave(sender, message.getTarget());
+                break;
+
+            case Protocol.ROOM_MESSAGE:
+                sendRoomMessage(sender, message.getTarget(), message.getBody());
+                break;
+
+            // Answer a request for the binary format, with compression if offered; the connection switches after writing the answer
+            case Protocol.UPGRADE:
+                String format = Protocol.TEXT;
+                if (Protocol.BINARY.equals(message.getBody())) {
+                    format = Protocol.BINARY;
+                } else if (Protocol.DEFLATE.equals(message.getBody())) {
+                    format = Compression.isEnabled() ? Protocol.DEFLATE : Protocol.BINARY;
+                }
+                sender.send(new OutboundMessage(Protocol.UPGRADE_RESPONSE, true, format));
+                break;
+
+            // Heartbeats only keep the connection alive, which the connection already noted
+            case Protocol.HEARTBEAT:
+                break;
+
+            // Start pushing the online list to a client that understands presence updates
+            case Protocol.PRESENCE_SUBSCRIBE:
+                if (Protocol.PRESENCE.equals(message.getBody())) {
+                    presence.subscribe(sender);
+                }
+                break;
+
+            default:
+                break; // Ignore malformed messages
+        }
+    }
+
+    /**
+     * Checks if a client with the specified name exists.
+     *
+     * @param handler      The connection requesting the check.
+     * @param receiverName The name of the client to check.
+     */
+    public void clientExist(Connection handler, String receiverName) {
+        // Notify the handler whether the client exists on this or another node
+        boolean exists = clients.get(receiverName) != null || (cluster != null && cluster.nodeOf(receiverName) != null);
+        handler.send(new OutboundMessage(Protocol.EXIST_RESPONSE, true, String.valueOf(exists), receiverName));
     }
 
     /**
      * Sends a global message to all connected clients.
      *
-     * @param globalMessage The message to be broadcasted to all clients.
+     * @param globalMessage The text to be broadcasted to all clients.
      */
     public void sendGlobalMessage(String globalMessage) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(globalMessage); // Send the message to each client
+        OutboundMessage encoded = deliverGlobalMessage(globalMessage);
+        if (cluster != null) {
+            cluster.relayGlobal(globalMessage); // Once per node, not once per remote client
+        }
+        if (messageLog != null) {
+            messageLog.append(null, encoded); // Written and synced in the background
+        }
+    }
+
+    /**
+     * Sends a global message to the clients of this node only.
+     * In nio mode every reactor sends it to the clients of its own shards, in parallel.
+     *
+     * @param globalMessage The text to be broadcasted.
+     * @return The encoded message.
+     */
+    OutboundMessage deliverGlobalMessage(String globalMessage) {
+        OutboundMessage encoded = OutboundMessage.global(globalMessage); // Encoded at most once per format
+        Connection[][] members = new Connection[clients.getShardCount()][];
+        if (history == null) {
+            snapshotShards(members);
+        } else {
+            synchronized (history) { // Ordered against registerWithHistory
+                history.add(encoded);
+                snapshotShards(members);
+            }
+        }
+        Reactor[] pool = reactorPool;
+        if (pool == null) {
+            fanOut(encoded, members, 0, 1);
+        } else {
+            for (int i = 0; i < pool.length; i++) {
+                int first = i;
+                pool[i].execute(() -> fanOut(encoded, members, first, pool.length));
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Takes the current members of every shard.
+     *
+     * @param members The array to fill, one entry per shard.
+     */
+    private void snapshotShards(Connection[][] members) {
+        for (int shard = 0; shard < members.length; shard++) {
+            members[shard] = clients.snapshot(shard); // Cached until the shard changes
         }
     }
 
+    /**
+     * Sends a message to the clients of every shard from the first one on, stepping by the given stride.
+     *
+     * @param message The message.
+     * @param members The members of every shard when the message was sent.
+     * @param first   The first shard.
+     * @param step    The distance between shards.
+     */
+    private void fanOut(OutboundMessage message, Connection[][] members, int first, int step) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (int shard = first; shard < members.length; shard += step) {
+            for (Connection client : members[shard]) {
+                client.send(message); // Send the message to each client
+            }
+            recipients += members[shard].length;
+        }
+        metrics.recordFanOut(System.nanoTime() - start, recipients);
+    }
+
     /**
      * Sends a private message from one client to another.
+     * A receiver on another node gets it through that node; if the receiver is not
+     * connected anywhere, the message is stored until it registers here.
      *
      * @param senderName   The name of the sender.
      * @param receiverName The name of the receiver.
      * @param message      The message to be sent.
      */
     public void sendPrivateMessage(String senderName, String receiverName, String message) {
-        for (ClientHandler client : clients) {
-            if (client.getClientName().equals(receiverName)) {
-                // Send the message to the receiver
-                client.sendMessage(senderName + "#" + message);
-                break;
+        OutboundMessage encoded = OutboundMessage.privateMessage(senderName, message);
+        String node = cluster != null && clients.get(receiverName) == null ? cluster.nodeOf(receiverName) : null;
+        if (node == null || !cluster.forwardPrivate(node, senderName, receiverName, message)) {
+            deliverPrivateMessage(receiverName, encoded);
+        }
+        if (messageLog != null) {
+            messageLog.append(receiverName, encoded); // Written and synced in the background
+        }
+    }
+
+    /**
+     * Sends a private message forwarded by another node to a client of this node.
+     *
+     * @param senderName   The name of the sender.
+     * @param receiverName The name of the receiver.
+     * @param message      The message to be sent.
+     */
+    void deliverPrivateMessage(String senderName, String receiverName, String message) {
+        deliverPrivateMessage(receiverName, OutboundMessage.privateMessage(senderName, message));
+    }
+
+    /**
+     * Sends a private message to a client of this node, or stores it if the client is not connected.
+     * In nio mode the message is handed to the reactor of the receiver's shard, so it stays
+     * in order with the global messages that reactor fans out.
+     *
+     * @param receiverName The name of the receiver.
+     * @param encoded      The message.
+     */
+    private void deliverPrivateMessage(String receiverName, OutboundMessage encoded) {
+        Connection receiver = clients.get(receiverName);
+        Reactor owner = receiver != null ? reactorFor(receiverName) : null;
+        if (owner != null) {
+            owner.execute(() -> receiver.send(encoded));
+        } else if (receiver != null) {
+            // Send the message to the receiver
+            receiver.send(encoded);
+        } else if (offlineStore != null) {
+            offlineStore.store(receiverName, encoded);
+            Connection client = clients.get(receiverName); // The receiver may have registered while the message was stored
+            OutboundMessage stored = client != null ? offlineStore.take(receiverName) : null;
+            if (stored != null) {
+                client.send(stored);
             }
         }
     }
 
     /**
-     * Removes a client from the list of connected clients.
+     * Sends a message to every member of a room. Clients can only send to rooms they joined.
      *
-     * @param clientHandler The ClientHandler to be removed.
+     * @param sender      The connection of the sender.
+     * @param room        The name of the room.
+     * @param roomMessage The text to be sent, including the sender prefix.
      */
-    public void removeClient(ClientHandler clientHandler) {
-        clients.remove(clientHandler); // Remove the client from the list
+    public void sendRoomMessage(Connection sender, String room, String roomMessage) {
+        if (!rooms.isMember(sender, room)) {
+            return;
+        }
+        OutboundMessage encoded = new OutboundMessage(Protocol.ROOM_MESSAGE, false, room, roomMessage); // Encoded at most once per format
+        for (Connection client : rooms.members(room)) {
+            client.send(encoded);
+        }
+        if (messageLog != null) {
+            messageLog.append(room, encoded); // Written and synced in the background
+        }
+    }
+
+    /**
+     * Removes a client from the registry of connected clients, from its rooms and from the presence subscribers.
+     *
+     * @param clientHandler The connection to be removed.
+     */
+    public void removeClient(Connection clientHandler) {
+        if (clients.unregister(clientHandler)) {
+            metrics.clientUnregistered();
+            if (cluster != null) {
+                cluster.clientRemoved(clientHandler.getClientName()); // Remove the client from the registry and the other nodes' directories
+            }
+            presence.offline(clientHandler.getClientName());
+        }
+        presence.unsubscribe(clientHandler);
+        rooms.leaveAll(clientHandler); // And from every room it joined
     }
 }
@@ -0,0 +1,228 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The TimerWheel class runs deadlines for many objects on one thread, in a hashed timing wheel.
+ *
+ * Time is cut into ticks, and a deadline is put into the slot of its tick modulo the number of
+ * slots, so scheduling and expiring are constant time no matter how many deadlines are pending.
+ * Deadlines further away than one turn of the wheel wait in their slot until their tick comes.
+ * Any thread may schedule or cancel; both are handed to the wheel thread through lock-free queues.
+ * Each slot is a doubly linked list of its timeouts, so a cancelled timeout is unlinked at the
+ * next tick and stops keeping its task reachable.
+ * The wheel also keeps a coarse clock, updated once per tick, that is cheap to read on hot paths.
+ */
+public class TimerWheel {
+    /**
+     * The Task interface is implemented by objects with a deadline on the wheel.
+     */
+    public interface Task {
+        /**
+         * Called on the wheel thread once the deadline has passed.
+         *
+         * @param now The current time in milliseconds.
+         * @return The next deadline in milliseconds, or 0 to leave the wheel.
+         */
+        long expired(long now);
+    }
+
+    private long tickMillis; // Length of one tick
+    private Slot[] slots; // Timeouts by tick modulo the slot count, touched only by the wheel thread
+    private Queue<Timeout> pending = new ConcurrentLinkedQueue<>(); // Timeouts scheduled by other threads
+    private Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>(); // Timeouts cancelled by other threads
+    private long start; // Time of tick 0
+    private long tick; // Tick being processed, touched only by the wheel thread
+    private volatile long now; // Coarse clock, updated every tick
+
+    /**
+     * Constructor for the TimerWheel. Starts the wheel thread.
+     *
+     * @param tickMillis The length of one tick in milliseconds.
+     * @param slotCount  The number of slots.
+     * @param name       The name of the wheel thread.
+     */
+    public TimerWheel(long tickMillis, int slotCount, String name) {
+        this.tickMillis = tickMillis;
+        this.slots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot();
+        }
+        this.start = System.currentTimeMillis();
+        this.now = start;
+        Thread thread = new Thread(this::turn, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the time of the last tick.
+     *
+     * @return The time in milliseconds, at most one tick behind the system clock.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Schedules a task. Safe to call from any thread.
+     *
+     * @param task     The task.
+     * @param deadline The time to call it at, in milliseconds.
+     * @return The timeout, which stays valid while the task keeps rescheduling itself.
+     */
+    public Timeout schedule(Task task, long deadline) {
+        Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Takes a task off the wheel at the next tick. Safe to call from any thread,
+     * also more than once or after the task has left the wheel.
+     *
+     * @param timeout The timeout returned when the task was scheduled.
+     */
+    public void cancel(Timeout timeout) {
+        cancelled.add(timeout);
+    }
+
+    /**
+     * Advances the wheel one tick at a time and expires the entries of each tick.
+     */
+    private void turn() {
+        long next = start;
+        while (true) {
+            next += tickMillis;
+            long delay = next - System.currentTimeMillis();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            now = System.currentTimeMillis();
+
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (!timeout.cancelled) {
+                    place(timeout, tick);
+                }
+            }
+            while ((timeout = cancelled.poll()) != null) {
+                timeout.cancelled = true; // Not placed if it is still pending
+                if (timeout.slot != null) {
+                    timeout.slot.remove(timeout);
+                }
+            }
+            expire(slots[(int) (tick % slots.length)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Calls every timeout of a slot whose tick has come and reschedules those that ask for it.
+     * Timeouts placed while the slot is walked go in front of the walk and are not seen by it.
+     *
+     * @param slot The slot of the current tick.
+     */
+    private void expire(Slot slot) {
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.tick <= tick) { // Otherwise due in a later turn of the wheel
+                slot.remove(timeout);
+                long deadline;
+                try {
+                    deadline = timeout.task.expired(now);
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // Keep the wheel turning
+                    deadline = 0;
+                }
+                if (deadline > 0) {
+                    timeout.deadline = deadline;
+                    place(timeout, tick + 1);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts a timeout into the slot of its deadline.
+     *
+     * @param timeout  The timeout.
+     * @param earliest The earliest tick it may expire at.
+     */
+    private void place(Timeout timeout, long earliest) {
+        timeout.tick = Math.max(earliest, (timeout.deadline - start + tickMillis - 1) / tickMillis);
+        slots[(int) (timeout.tick % slots.length)].add(timeout);
+    }
+
+    /**
+     * A task on the wheel together with its deadline.
+     */
+    public static class Timeout {
+        private final Task task; // Task to call
+        private long deadline; // When to call it, in milliseconds
+        private long tick; // Tick the deadline falls into
+        private boolean cancelled; // Whether the wheel thread has seen a cancel
+        private Slot slot; // Slot holding the timeout, null while it is off the wheel
+        private Timeout previous; // Previous timeout in the slot
+        private Timeout next; // Next timeout in the slot
+
+        /**
+         * Constructor for the Timeout.
+         *
+         * @param task     The task.
+         * @param deadline The time to call it at, in milliseconds.
+         */
+        private Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * The timeouts of one slot, as a doubly linked list through the timeouts.
+     */
+    private static class Slot {
+        private Timeout head; // First timeout, null if the slot is empty
+
+        /**
+         * Adds a timeout at the front of the slot.
+         *
+         * @param timeout The timeout, which must not be in a slot.
+         */
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        /**
+         * Unlinks a timeout from the slot.
+         *
+         * @param timeout The timeout, which must be in this slot.
+         */
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+}